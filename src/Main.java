@@ -1,11 +1,26 @@
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.Set;
 
+import lexer.Diagnostics;
+import lexer.FileFollower;
 import lexer.LexToken;
 import lexer.Lexer;
+import lexer.LexerCheckpoint;
+import lexer.LexerOptions;
+import lexer.LexerProfile;
+import lexer.PipelinedTokenizer;
+import lexer.TokenStats;
+import lexer.TokenStreamWriter;
 
 public class Main {
     public static void main(String[] args) {
@@ -16,30 +31,101 @@ public class Main {
             return;
         }
 
-        boolean verbose = false;
-
-        if (args[len - 1].equals("-v")) {
-            verbose = true;
-            len--;
+        LexerOptions options;
+        try {
+            options = LexerOptions.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            showExecutionFormat();
+            return;
         }
 
+        List<String> positional = options.getPositional();
+        len = positional.size();
         if (len != 2 && len != 3) {
             showExecutionFormat();
             return;
         }
 
-        String regexFilePath = args[0], programFilePath = args[1], outputFilePath = null;
-        if (len == 3) outputFilePath = args[2];
+        String regexFilePath = positional.get(0), programFilePath = positional.get(1), outputFilePath = null;
+        if (len == 3) outputFilePath = positional.get(2);
 
-        Lexer lexer = new Lexer(regexFilePath, verbose);
+        // checkpoints record how much of the output file is written, tokens must go straight to it
+        boolean checkpointed = options.getCheckpointInterval() != 0 || options.isResume();
+        if (checkpointed && (outputFilePath == null || options.isPipelined() || options.getCheckpointInterval() < 0)) {
+            System.err.println("-checkpoint and -resume need an output file, a positive interval and no -pipelined.");
+            return;
+        }
+        if (options.isFollow() && (options.isPipelined() || checkpointed)) {
+            System.err.println("-follow cannot be combined with -pipelined, -checkpoint or -resume.");
+            return;
+        }
+        if (options.isCount() && (options.isPipelined() || options.isFollow() || checkpointed)) {
+            System.err.println("-count cannot be combined with -pipelined, -follow, -checkpoint or -resume.");
+            return;
+        }
+        if (options.isBinary() && (outputFilePath == null || options.isPipelined() || options.isFollow() || checkpointed
+                                   || options.isCount())) {
+            System.err.println("-binary and -binary-refs need an output file and no -pipelined, -follow, -checkpoint, -resume or -count.");
+            return;
+        }
+        // an error token only carries a snippet of its span, which cannot be referred to by its length
+        if (options.isBinary() && !options.isBinaryLexemes() && options.isErrorTokens()) {
+            System.err.println("-binary-refs cannot be combined with -error-tokens.");
+            return;
+        }
+
+        Lexer lexer = new Lexer(regexFilePath, options.isVerbose(), options.getMaxDfaStates(), options.isDropShadowed(),
+            options.getCompileThreads());
+        for (String warning : lexer.getRuleWarnings())
+            System.err.println(warning);
+        options.configure(lexer.getSettings());
+
+        // a profile is always recorded on the automata as they were compiled
+        String profilePath = LexerProfile.getPath(regexFilePath);
+        if (options.isProfileLayout() && !options.isProfile())
+            layoutStates(lexer, profilePath);
+        lexer.setProfiling(options.isProfile());
 
         System.out.println("Starting tokenization.\n");
-        System.err.println("Warnings will be emitted on invalid matches.\n");
 
-        List<LexToken> allTokens = lexer.tokenize(programFilePath),
-            nonWhitespaceTokens = filterWhitespaces(allTokens);
+        // whitespaces are dropped inside the lexer, they are never materialized
+        Set<String> wantedTypes = options.getWantedTypes(lexer);
+
+        // pipelined tokens are written out while scanning, the others once it is done
+        List<LexToken> nonWhitespaceTokens = null;
+        TokenStats stats = null;
+        if (options.isPipelined())
+            streamTokens(lexer, programFilePath, wantedTypes, outputFilePath);
+        else if (options.isFollow())
+            followTokens(lexer, programFilePath, wantedTypes, outputFilePath);
+        else if (options.isCount())
+            stats = lexer.count(programFilePath);
+        else if (options.isBinary())
+            writeBinaryTokens(lexer, programFilePath, wantedTypes, outputFilePath, options.isBinaryLexemes());
+        else if (checkpointed)
+            checkpointTokens(lexer, programFilePath, wantedTypes, outputFilePath, options.getCheckpointInterval(), options.isResume());
+        else
+            nonWhitespaceTokens = lexer.tokenize(programFilePath, wantedTypes);
 
         System.out.println("\nFinished tokenization.");
+        if (lexer.getSettings().getSymbolTable() != null)
+            System.out.println(lexer.getSettings().getSymbolTable().size() + " distinct lexemes interned.");
+
+        // the stats hold the invalid match counts, no span is kept to be listed
+        Diagnostics diagnostics = lexer.getDiagnostics();
+        if (diagnostics.getErrorCount() != 0 && stats == null)
+            System.err.println("\n" + diagnostics.getReport());
+
+        if (options.isProfile() || options.isProfileReport())
+            updateProfile(lexer, profilePath, options.isProfile(), options.isProfileReport());
+
+        if (stats != null) {
+            writeStats(stats, outputFilePath);
+            return;
+        }
+        if (nonWhitespaceTokens == null)
+            return;
 
         if (outputFilePath == null) {
             System.out.println("\n\nTokens Found:");
@@ -52,23 +138,262 @@ public class Main {
 
     }
 
-    private static List<LexToken> filterWhitespaces(List<LexToken> tokens) {
-        List<LexToken> filteredTokens = new ArrayList<>();
+    private static void streamTokens(Lexer lexer, String programFilePath, Set<String> wantedTypes, String outputFilePath) {
+        if (outputFilePath == null)
+            System.out.println("Tokens Found:");
+        else
+            System.out.println("Writing tokens to file: " + outputFilePath);
 
-        for (LexToken token : tokens) {
-            if (!token.tokenType.equals("WHITESPACE"))
-                filteredTokens.add(token);
+        BufferedWriter bw = null;
+        try {
+            bw = new BufferedWriter((outputFilePath == null) ? new OutputStreamWriter(System.out) : new FileWriter(outputFilePath));
+            bw.write(LexToken.getFormattedHeading());
+            bw.newLine();
+
+            BufferedWriter out = bw;
+            new PipelinedTokenizer(lexer, lexer.getSettings().getCharset()).tokenize(programFilePath, wantedTypes, token -> {
+                try {
+                    out.write(token.getFormattedString());
+                    out.newLine();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            bw.flush();
+        }
+        catch (FileNotFoundException e) {
+            System.err.println("Program file not found");
+        }
+        catch (IOException | UncheckedIOException e) {
+            System.err.println("I/O error while tokenizing.");
+        }
+        finally {
+            // standard output stays open
+            if (outputFilePath != null && bw != null) {
+                try {
+                    bw.close();
+                }
+                catch (IOException e) {
+                    System.err.println("I/O error while writing output file.");
+                }
+            }
+        }
+    }
+
+    private static void followTokens(Lexer lexer, String programFilePath, Set<String> wantedTypes, String outputFilePath) {
+        if (!new File(programFilePath).isFile()) {
+            System.err.println("Program file not found");
+            return;
+        }
+
+        System.out.println((outputFilePath == null) ? "Tokens Found:" : "Writing tokens to file: " + outputFilePath);
+
+        BufferedWriter bw = null;
+        try {
+            bw = new BufferedWriter((outputFilePath == null) ? new OutputStreamWriter(System.out) : new FileWriter(outputFilePath));
+            bw.write(LexToken.getFormattedHeading());
+            bw.newLine();
+
+            // the tokens are flushed whenever the lexer catches up with the file
+            BufferedWriter out = bw;
+            FileFollower follower = new FileFollower(lexer, lexer.getSettings().getCharset());
+            follower.setOnIdle(() -> {
+                try {
+                    out.flush();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            follower.setOnRestart(reason -> System.err.println("Program file " + reason + ", tokenizing it from its start."));
+            follower.follow(programFilePath, wantedTypes, token -> {
+                try {
+                    out.write(token.getFormattedString());
+                    out.newLine();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            bw.flush();
+        }
+        catch (IOException | UncheckedIOException e) {
+            System.err.println("I/O error while following the program file.");
+        }
+        finally {
+            if (outputFilePath != null && bw != null) {
+                try {
+                    bw.close();
+                }
+                catch (IOException e) {
+                    System.err.println("I/O error while writing output file.");
+                }
+            }
+        }
+    }
+
+    // the tokens go straight to the file as they are found, rows included
+    private static void writeBinaryTokens(Lexer lexer, String programFilePath, Set<String> wantedTypes,
+                                          String outputFilePath, boolean withLexemes) {
+        if (!new File(programFilePath).isFile()) {
+            System.err.println("Program file not found");
+            return;
+        }
+
+        System.out.println("Writing binary tokens to file: " + outputFilePath);
+        Set<String> types = lexer.getTokenTypes();
+        types.add(Lexer.ERROR_TYPE);
+        int flags = TokenStreamWriter.ROWS | (withLexemes ? TokenStreamWriter.LEXEMES : 0);
+
+        try (TokenStreamWriter writer = new TokenStreamWriter(new FileOutputStream(outputFilePath), types, flags)) {
+            lexer.tokenize(programFilePath, wantedTypes, writer);
+        }
+        catch (IOException | UncheckedIOException e) {
+            System.err.println("I/O error while writing output file.");
+        }
+    }
+
+    private static void checkpointTokens(Lexer lexer, String programFilePath, Set<String> wantedTypes,
+                                         String outputFilePath, long interval, boolean resume) {
+        if (!new File(programFilePath).isFile()) {
+            System.err.println("Program file not found");
+            return;
+        }
+
+        String checkpointPath = LexerCheckpoint.getPath(outputFilePath);
+        try {
+            LexerCheckpoint from = null;
+            if (resume && new File(checkpointPath).isFile() && new File(outputFilePath).isFile()) {
+                from = LexerCheckpoint.read(checkpointPath);
+                // the tokens before the checkpoint must all be in the output still
+                if (from.getOutputPosition() < 0 || new File(outputFilePath).length() < from.getOutputPosition()) {
+                    System.err.println("Output file is shorter than its checkpoint, tokenize again without -resume.");
+                    return;
+                }
+                System.out.println("Resuming from checkpoint at " + from + ".\n");
+            }
+            System.out.println("Writing tokens to file: " + outputFilePath);
+
+            try (FileOutputStream fos = new FileOutputStream(outputFilePath, from != null)) {
+                BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
+                // the tokens written after the checkpoint are found again
+                if (from != null)
+                    fos.getChannel().truncate(from.getOutputPosition());
+                else {
+                    bw.write(LexToken.getFormattedHeading());
+                    bw.newLine();
+                }
+
+                if (interval > 0) {
+                    lexer.getSettings().setCheckpointing(interval, checkpoint -> {
+                        try {
+                            // the output must be on disk before a checkpoint says it is
+                            bw.flush();
+                            fos.getFD().sync();
+                            checkpoint.withOutputPosition(fos.getChannel().position()).write(checkpointPath);
+                        }
+                        catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+
+                lexer.tokenize(programFilePath, wantedTypes, token -> {
+                    try {
+                        bw.write(token.getFormattedString());
+                        bw.newLine();
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, from);
+                bw.flush();
+            }
+            finally {
+                lexer.getSettings().setCheckpointing(0, null);
+            }
+
+            // nothing is left to resume
+            Files.deleteIfExists(Paths.get(checkpointPath));
+        }
+        catch (IOException | UncheckedIOException e) {
+            System.err.println("I/O error while tokenizing, resume with -resume.");
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Checkpoint does not fit the definitions: " + e.getMessage());
+        }
+    }
+
+    private static void layoutStates(Lexer lexer, String profilePath) {
+        if (!new File(profilePath).isFile()) {
+            System.err.println("No profile found at " + profilePath + ", states are not laid out.");
+            return;
+        }
+
+        try {
+            int laidOut = lexer.layoutStates(LexerProfile.read(profilePath));
+            System.out.println("States of " + laidOut + " automata laid out by profile.\n");
+        }
+        catch (IOException e) {
+            System.err.println("I/O error while reading profile.");
+        }
+    }
+
+    private static void updateProfile(Lexer lexer, String profilePath, boolean save, boolean report) {
+        try {
+            LexerProfile profile = save ? lexer.getProfile() : null;
+
+            // counts of earlier runs on the same definitions are kept
+            if (new File(profilePath).isFile()) {
+                LexerProfile saved = LexerProfile.read(profilePath);
+                if (profile == null)
+                    profile = saved;
+                else if (!profile.merge(saved))
+                    System.err.println("Profile at " + profilePath + " is for other definitions, it is replaced.");
+            }
+            if (profile == null) {
+                System.err.println("No profile found at " + profilePath + ".");
+                return;
+            }
+
+            if (save) {
+                profile.write(profilePath);
+                System.out.println("\nProfile written to file: " + profilePath);
+            }
+            if (report)
+                System.out.println("\nProfile:\n" + profile.getReport());
+        }
+        catch (IOException e) {
+            System.err.println("I/O error while updating profile.");
         }
-        
-        return filteredTokens;
     }
 
     private static void showExecutionFormat() {
         System.out.println(
-            "Format: java -cp classpath Main regexFilePath programFilePath [outputFilePath] [-v]"
+            "Format: java -cp classpath Main regexFilePath programFilePath [outputFilePath] [-v] "
+            + "[-max-errors n] [-error-tokens] [-profile] [-profile-report] [-profile-layout] [-pipelined] [-max-dfa-states n] [-drop-shadowed] [-compile-threads n] [-charset name] [-checkpoint n] [-resume] [-follow] [-intern types] [-count] [-binary] [-binary-refs]"
         );
         System.out.println("Arguments in square brackets denote optional.");
-        System.out.println("-v: Verbose flag. If enabled, dump all details of intermediate steps.");
+        for (String line : LexerOptions.getFlagsUsage())
+            System.out.println(line);
+    }
+
+    private static void writeStats(TokenStats stats, String outputFilePath) {
+        if (outputFilePath == null) {
+            System.out.println("\n\nToken Stats:");
+            System.out.println(stats.getReport());
+            return;
+        }
+
+        System.out.println("\n\nWriting token stats to file: " + outputFilePath);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFilePath))) {
+            bw.write(stats.getReport());
+            bw.newLine();
+        }
+        catch (IOException e) {
+            System.err.println("I/O error while writing output file.");
+        }
     }
 
     private static void dumpTokens(List<LexToken> tokens) {
@@ -0,0 +1,57 @@
+package algorithms;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import automata.NFA;
+import regex.RegexTreeNode;
+import regex.RegexTreeNodePool;
+
+/**
+ * Thompson NFAs of the subtrees which occur more than once among the trees of
+ * a {@link RegexTreeNodePool}, so each of them is built once. Subtrees used
+ * only once and single chars are not kept, they are cheap or never reused.
+ *
+ * <p>
+ * The cached NFAs are shared by all the NFAs built from them, which is safe as
+ * the Thompson constructions only copy their operands. Rules may be compiled
+ * on several threads at once with the same cache. Two threads may then both
+ * build the NFA of a subtree, the first one is kept.
+ */
+public class NFAFragmentCache {
+    private final RegexTreeNodePool pool;
+    // nodes do not override equals, pooled nodes are keyed by identity
+    private final Map<RegexTreeNode, NFA> fragments;
+    private final AtomicInteger hits;
+
+    public NFAFragmentCache(RegexTreeNodePool pool) {
+        this.pool = pool;
+        this.fragments = new ConcurrentHashMap<>();
+        this.hits = new AtomicInteger();
+    }
+
+    public NFA get(RegexTreeNode node) {
+        NFA nfa = fragments.get(node);
+        if (nfa != null)
+            hits.incrementAndGet();
+        return nfa;
+    }
+
+    public void put(RegexTreeNode node, NFA nfa) {
+        if (isShared(node))
+            fragments.putIfAbsent(node, nfa);
+    }
+
+    private boolean isShared(RegexTreeNode node) {
+        return node.getLeftChild() != null && pool.getUses(node) > 1;
+    }
+
+    public int size() {
+        return fragments.size();
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+}
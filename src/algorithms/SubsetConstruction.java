@@ -1,9 +1,12 @@
 package algorithms;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.LinkedList;
 
@@ -13,16 +16,36 @@ import automata.NFA;
 public class SubsetConstruction {
 
     public static DFA convert(final NFA n) {
+        return convert(n, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #convert(NFA)}, giving up once the dfa needs more than {@code maxStates} states.
+     *
+     * @return The dfa, or {@code null} if it has too many states.
+     */
+    public static DFA convert(final NFA n, int maxStates) {
         NFA nfa = new NFA(n);
 
         DFA dfa = new DFA(1, 0, new TreeSet<>());
 
         int start = nfa.getStartState();
+        // over char classes there is one symbol per class rather than per char
         Set<Character> alphabets = nfa.getAlphabet();
 
         // Initialization
-        Map<Integer, Set<Integer>> subsets = new TreeMap<>();
-        subsets.put(0, nfa.epsilonClosure(start));
+        // the nfa states of each dfa state, and the dfa state of each set of nfa states
+        List<Set<Integer>> subsets = new ArrayList<>();
+        Map<Set<Integer>, Integer> dfaStates = new HashMap<>();
+        subsets.add(nfa.epsilonClosure(start));
+        dfaStates.put(subsets.get(0), 0);
+        // the start state accepts the empty string when its closure holds a final state
+        for (int nfaState : subsets.get(0)) {
+            if (nfa.getFinalStates().contains(nfaState)) {
+                dfa.setFinalStates(Collections.singleton(0));
+                break;
+            }
+        }
         LinkedList<Integer> unmarkedDfaStates = new LinkedList<Integer>();
         unmarkedDfaStates.push(0);
 
@@ -36,10 +59,13 @@ public class SubsetConstruction {
                 Set<Integer> u = nfa.epsilonClosure(nfa.move(curNfaStates, a));
                 if (u.isEmpty()) continue;
 
-                Integer newDfaState = null;
-                if (!subsets.containsValue(u)) {
+                Integer newDfaState = dfaStates.get(u);
+                if (newDfaState == null) {
                     newDfaState = subsets.size();
-                    subsets.put(newDfaState, u);
+                    subsets.add(u);
+                    dfaStates.put(u, newDfaState);
+                    if (subsets.size() > maxStates)
+                        return null;
                     unmarkedDfaStates.push(newDfaState);
 
                     dfa.increaseNumberOfStates(1);
@@ -57,13 +83,6 @@ public class SubsetConstruction {
                         dfaFinalStates.add(newDfaState);
                         dfa.setFinalStates(dfaFinalStates);
                     }
-                } else {
-                    for (Integer k : subsets.keySet()) {
-                        if (subsets.get(k).equals(u)) {
-                            newDfaState = k;
-                            break;
-                        }
-                    }
                 }
 
                 dfa.addTransition(curDfaState, a, newDfaState);
@@ -7,6 +7,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
+import automata.CharClasses;
 import automata.NFA;
 import regex.Regex;
 import regex.RegexTree;
@@ -27,6 +28,29 @@ public class Thompson {
         return n;
     }
 
+    // an nfa with one transition from its start to its final state on each of its symbols
+    private static boolean isCharSet(NFA s) {
+        if (s.getNumberOfStates() != 2 || s.getStartState() != 0 || !s.getFinalStates().equals(Collections.singleton(1)))
+            return false;
+        if (!s.getEpsilonTransitions().get(0).isEmpty() || !s.getEpsilonTransitions().get(1).isEmpty()
+                || !s.getNormalTransitions().get(1).isEmpty())
+            return false;
+        for (Set<Integer> targets : s.getNormalTransitions().get(0).values())
+            if (!targets.equals(Collections.singleton(1)))
+                return false;
+        return true;
+    }
+
+    // the union of two char sets, kept as a single transition on each symbol
+    private static NFA charSetUnion(NFA s, NFA t) {
+        NFA n = new NFA(2, 0, Collections.singleton(1));
+        for (char symbol : s.getNormalTransitions().get(0).keySet())
+            n.addNormalTransition(0, symbol, 1);
+        for (char symbol : t.getNormalTransitions().get(0).keySet())
+            n.addNormalTransition(0, symbol, 1);
+        return n;
+    }
+
     public static NFA kleene(NFA s) {
         int totalStates = s.getNumberOfStates() + 2;
         NFA n = new NFA(totalStates, 0, Collections.singleton(totalStates-1));
@@ -126,24 +150,61 @@ public class Thompson {
     }
 
     public static NFA traverse(RegexTreeNode root) {
+        return traverse(root, null, null);
+    }
+
+    private static NFA traverse(RegexTreeNode root, NFAFragmentCache cache, CharClasses classes) {
+
+        if (root.getLeftChild() == null && root.getRightChild() == null) {
+            if (root.getType() != RegexTreeNodeType.CHAR)
+                return epsilon(root.getValue());
+            return single((classes == null) ? root.getValue() : (char) classes.getClass(root.getValue()));
+        }
 
-        if (root.getLeftChild() == null && root.getRightChild() == null)
-            return (root.getType() == RegexTreeNodeType.CHAR) ? single(root.getValue()) : epsilon(root.getValue());
+        NFA nfa = (cache == null) ? null : cache.get(root);
+        if (nfa != null)
+            return nfa;
 
-        if (root.getType() == RegexTreeNodeType.CONCAT)
-            return concat(traverse(root.getLeftChild()), traverse(root.getRightChild()));
-        else if (root.getType() == RegexTreeNodeType.UNION)
-            return union(traverse(root.getLeftChild()), traverse(root.getRightChild()));
-        else if (root.getType() == RegexTreeNodeType.CLOSURE)
-            return kleene(traverse(root.getLeftChild()));
+        if (root.getType() == RegexTreeNodeType.CONCAT) {
+            nfa = concat(traverse(root.getLeftChild(), cache, classes), traverse(root.getRightChild(), cache, classes));
+        }
+        else if (root.getType() == RegexTreeNodeType.UNION) {
+            NFA s = traverse(root.getLeftChild(), cache, classes), t = traverse(root.getRightChild(), cache, classes);
+            // over classes a range is a handful of symbols, so it is cheap to keep as one transition per class
+            nfa = (classes != null && isCharSet(s) && isCharSet(t)) ? charSetUnion(s, t) : union(s, t);
+        }
+        else if (root.getType() == RegexTreeNodeType.CLOSURE) {
+            nfa = kleene(traverse(root.getLeftChild(), cache, classes));
+        }
         else
             throw new IllegalStateException("Invalid Node type");
+
+        if (cache != null)
+            cache.put(root, nfa);
+        return nfa;
     }
 
     public static NFA convert(RegexTree regexTree) {
         return traverse(regexTree.getRoot());
     }
 
+    /**
+     * Convert a tree built from a pool, reusing and adding to the NFAs of its
+     * shared subtrees. The result may itself be cached, it must not be modified.
+     */
+    public static NFA convert(RegexTree regexTree, NFAFragmentCache cache) {
+        return traverse(regexTree.getRoot(), cache, null);
+    }
+
+    /**
+     * Like {@link #convert(RegexTree, NFAFragmentCache)}, with the transitions on
+     * the classes of the chars rather than on the chars. The unions of single
+     * chars become a single pair of states.
+     */
+    public static NFA convert(RegexTree regexTree, NFAFragmentCache cache, CharClasses classes) {
+        return traverse(regexTree.getRoot(), cache, classes);
+    }
+
     public static NFA convert(Regex regex) {
         RegexTree tree = new RegexTree(regex);
 
@@ -0,0 +1,44 @@
+package automata;
+
+import java.util.Set;
+
+/**
+ * An automaton the lexer runs over the input, one symbol at a time, to find
+ * the matches of a rule.
+ */
+public interface Automaton {
+    void reset();
+
+    void advance(char ch);
+
+    boolean isInDeadState();
+
+    boolean isInFinalState();
+
+    /**
+     * @return The symbols on which there is a transition out of the start configuration.
+     */
+    Set<Character> getStartSymbols();
+
+    /**
+     * @return Whether the symbols keeping the automaton in its current
+     * configuration can be skipped with {@link #skipSelfLoop(char[], int, int)}.
+     */
+    boolean isInAccelerableState();
+
+    /**
+     * Skip the symbols which keep the automaton in its current, accelerable,
+     * configuration.
+     *
+     * @return The index of the first symbol in {@code symbols[from, to)} which
+     * leaves the current configuration, or {@code to} if none does.
+     */
+    int skipSelfLoop(char[] symbols, int from, int to);
+
+    /**
+     * @return An automaton sharing the transitions of this one, with its own
+     * configuration, in the start configuration. Both may run at once on
+     * different threads, as long as the transitions are not changed.
+     */
+    Automaton fork();
+}
@@ -0,0 +1,134 @@
+package automata;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.BitSet;
+
+import utils.StringEscapeUtils;
+
+/**
+ * A partition of all the chars into classes of chars which no rule tells
+ * apart: every set of chars a rule matches at some point either holds all the
+ * chars of a class or none of them. Automata over the classes need a column
+ * per class instead of one per char.
+ */
+public class CharClasses {
+    public static final int NUMBER_OF_CHARS = Character.MAX_VALUE + 1;
+
+    private final char[] classOf;
+    // the chars of each class, in ascending order
+    private final char[][] chars;
+
+    private CharClasses(char[] classOf, int numberOfClasses) {
+        this.classOf = classOf;
+
+        int[] sizes = new int[numberOfClasses];
+        for (char cls : classOf)
+            sizes[cls]++;
+
+        chars = new char[numberOfClasses][];
+        for (int cls = 0; cls < numberOfClasses; cls++)
+            chars[cls] = new char[sizes[cls]];
+        Arrays.fill(sizes, 0);
+        for (int ch = 0; ch < NUMBER_OF_CHARS; ch++)
+            chars[classOf[ch]][sizes[classOf[ch]]++] = (char) ch;
+    }
+
+    /**
+     * Split the chars into the fewest classes such that each of {@code charSets}
+     * is a union of classes. Classes are numbered by their lowest char.
+     */
+    public static CharClasses of(Collection<BitSet> charSets) {
+        int[] classOf = new int[NUMBER_OF_CHARS];
+        int count = 1;
+
+        // the chars of a class which are in a set move to the class split off for this set
+        int[] split = new int[16], splitFor = new int[16];
+        int setIdx = 0;
+        for (BitSet set : charSets) {
+            setIdx++;
+            for (int ch = set.nextSetBit(0); ch >= 0 && ch < NUMBER_OF_CHARS; ch = set.nextSetBit(ch + 1)) {
+                int cls = classOf[ch];
+                if (cls >= splitFor.length) {
+                    split = Arrays.copyOf(split, 2 * cls);
+                    splitFor = Arrays.copyOf(splitFor, 2 * cls);
+                }
+                if (splitFor[cls] != setIdx) {
+                    splitFor[cls] = setIdx;
+                    split[cls] = count++;
+                }
+                classOf[ch] = split[cls];
+            }
+        }
+
+        // classes left empty by the splits are dropped
+        int[] renumbered = new int[count];
+        Arrays.fill(renumbered, -1);
+        char[] result = new char[NUMBER_OF_CHARS];
+        int numberOfClasses = 0;
+        for (int ch = 0; ch < NUMBER_OF_CHARS; ch++) {
+            if (renumbered[classOf[ch]] == -1)
+                renumbered[classOf[ch]] = numberOfClasses++;
+            result[ch] = (char) renumbered[classOf[ch]];
+        }
+
+        return new CharClasses(result, numberOfClasses);
+    }
+
+    public int getClass(char ch) {
+        return classOf[ch];
+    }
+
+    public int getNumberOfClasses() {
+        return chars.length;
+    }
+
+    /**
+     * @return The chars of the class, in ascending order.
+     */
+    public char[] getChars(int cls) {
+        return chars[cls].clone();
+    }
+
+    public int getSize(int cls) {
+        return chars[cls].length;
+    }
+
+    /**
+     * @return The lowest char of the class.
+     */
+    public char getRepresentative(int cls) {
+        return chars[cls][0];
+    }
+
+    // "a-z" for a run of consecutive chars
+    private String describe(int cls) {
+        StringBuilder sb = new StringBuilder();
+        char[] members = chars[cls];
+        for (int idx = 0; idx < members.length; ) {
+            int end = idx;
+            while (end + 1 < members.length && members[end + 1] == members[end] + 1)
+                end++;
+
+            if (sb.length() != 0)
+                sb.append(' ');
+            sb.append(StringEscapeUtils.getRepresentation(members[idx]));
+            if (end != idx)
+                sb.append('-').append(StringEscapeUtils.getRepresentation(members[end]));
+            idx = end + 1;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("    Number of Classes: " + chars.length + "\n");
+        for (int cls = 0; cls < chars.length; cls++)
+            sb.append(String.format("        %5d %s\n", cls, describe(cls)));
+        sb.setLength(sb.length() - 1);
+
+        return sb.toString();
+    }
+}
@@ -1,21 +1,38 @@
 package automata;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.BiPredicate;
 
 import utils.StringEscapeUtils;
 
-public class DFA {
+public class DFA implements Automaton {
     public static final int DEAD_STATE = -1;
 
+    /** Most transitions out of a state which does not loop to itself, for it to be accelerable. */
+    public static final int MAX_EXIT_SYMBOLS = 4;
+
+    /** Most entries of the transition table by class, larger dfas look their transitions up in the maps. */
+    public static final int MAX_TABLE_SIZE = 1 << 24;
+
     private int numberOfStates, startState, currentState;
     private Set<Integer> finalStates;
     private ArrayList<Map<Character, Integer>> transitions;
+    // bitmap of the self looping symbols of each accelerable state, null for the other states
+    private long[][] selfLoops;
+    private DFAProfile profile;
+    // the classes the symbols of the transitions stand for, null if they are the chars themselves
+    private CharClasses classes;
+    // the next state by state and class, a row of getNumberOfClasses() entries per state
+    private int[] table;
 
     public DFA(int numberOfStates, int startState, Collection<Integer> finalStates) {
         if (startState >= numberOfStates || !areValuesInRange(numberOfStates, finalStates))
@@ -36,6 +53,31 @@ public class DFA {
         this.finalStates = new TreeSet<>(other.finalStates);
 
         initTransitions(other.transitions);
+        if (other.selfLoops != null)
+            this.selfLoops = other.selfLoops.clone();
+        this.classes = other.classes;
+        this.table = other.table;
+    }
+
+    // shares the transitions of other, only the current state is its own
+    private DFA(DFA other, int currentState) {
+        this.numberOfStates = other.numberOfStates;
+        this.startState = other.startState;
+        this.currentState = currentState;
+        this.finalStates = other.finalStates;
+        this.transitions = other.transitions;
+        this.selfLoops = other.selfLoops;
+        this.classes = other.classes;
+        this.table = other.table;
+    }
+
+    /**
+     * The fork does not record into the profile of this dfa. Changing the
+     * transitions of either of them changes them in both.
+     */
+    @Override
+    public DFA fork() {
+        return new DFA(this, startState);
     }
 
     private void initTransitions() {
@@ -64,23 +106,267 @@ public class DFA {
 
         Map<Character, Integer> transition = transitions.get(from);
         transition.put(on, to);
+        selfLoops = null;
+        table = null;
+    }
+
+    /**
+     * Take the symbols of the transitions to be classes of {@code classes}
+     * rather than chars, and lay the transitions out in a table with a column
+     * per class. The dfa is still advanced on chars, each one taking the
+     * transition on its class. Adding a transition forgets the table.
+     */
+    public void setCharClasses(CharClasses classes) {
+        for (Map<Character, Integer> transition : transitions)
+            for (char symbol : transition.keySet())
+                if (symbol >= classes.getNumberOfClasses())
+                    throw new IllegalArgumentException("Symbol is not a class");
+
+        this.classes = classes;
+
+        int width = classes.getNumberOfClasses();
+        table = null;
+        if ((long) numberOfStates * width > MAX_TABLE_SIZE)
+            return;
+
+        int[] table = new int[numberOfStates * width];
+        Arrays.fill(table, DEAD_STATE);
+        for (int state = 0; state < numberOfStates; state++)
+            for (Map.Entry<Character, Integer> e : transitions.get(state).entrySet())
+                table[state * width + e.getKey()] = e.getValue();
+        this.table = table;
+    }
+
+    public CharClasses getCharClasses() {
+        return classes;
+    }
+
+    // the transition on ch, whether it is a class or the symbol itself
+    private int step(int state, char ch) {
+        if (classes == null) {
+            Integer nextState = transitions.get(state).get(ch);
+            return (nextState == null) ? DEAD_STATE : nextState;
+        }
+
+        int cls = classes.getClass(ch);
+        if (table != null)
+            return table[state * classes.getNumberOfClasses() + cls];
+        Integer nextState = transitions.get(state).get((char) cls);
+        return (nextState == null) ? DEAD_STATE : nextState;
     }
 
+    @Override
     public void advance(char ch) {
         if (isInDeadState()) throw new IllegalStateException("Advancing while in dead state");
 
-        Integer nextState = transitions.get(currentState).get(ch);
-        if (nextState == null) {
-            currentState = DEAD_STATE;
-        } else {
-            currentState = nextState;
+        int nextState = step(currentState, ch);
+        if (profile != null) {
+            profile.recordStateVisits(currentState, 1);
+            if (nextState != DEAD_STATE)
+                profile.recordTransitionVisits(currentState, ch, 1);
+        }
+        currentState = nextState;
+    }
+
+    // the chars a symbol stands for
+    private void addChars(char symbol, Collection<Character> chars) {
+        if (classes == null) {
+            chars.add(symbol);
+            return;
+        }
+        for (char ch : classes.getChars(symbol))
+            chars.add(ch);
+    }
+
+    /**
+     * Find the states where the automaton is likely to stay for many symbols: the
+     * ones which loop to themselves, with at most {@link #MAX_EXIT_SYMBOLS}
+     * transitions to other states. Adding a transition forgets the result.
+     */
+    public void computeAccelerableStates() {
+        selfLoops = new long[numberOfStates][];
+
+        for (int state = 0; state < numberOfStates; state++) {
+            int exits = 0;
+            boolean loops = false;
+            for (Map.Entry<Character, Integer> e : transitions.get(state).entrySet()) {
+                if (e.getValue() == state)
+                    loops = true;
+                else
+                    exits++;
+            }
+            if (!loops || exits > MAX_EXIT_SYMBOLS)
+                continue;
+
+            List<Character> loopChars = new ArrayList<>();
+            for (Map.Entry<Character, Integer> e : transitions.get(state).entrySet())
+                if (e.getValue() == state)
+                    addChars(e.getKey(), loopChars);
+
+            char maxLoop = 0;
+            for (char ch : loopChars)
+                maxLoop = (char) Math.max(maxLoop, ch);
+            long[] bitmap = new long[(maxLoop >>> 6) + 1];
+            for (char ch : loopChars)
+                bitmap[ch >>> 6] |= 1L << ch;
+            selfLoops[state] = bitmap;
+        }
+    }
+
+    public boolean isAccelerable(int state) {
+        return selfLoops != null && state != DEAD_STATE && selfLoops[state] != null;
+    }
+
+    @Override
+    public boolean isInAccelerableState() {
+        return isAccelerable(currentState);
+    }
+
+    /**
+     * Skip the symbols on which the current, accelerable, state loops to itself.
+     * The automaton stays in the current state.
+     *
+     * @return The index of the first symbol in {@code symbols[from, to)} which
+     * leaves the current state, or {@code to} if none does.
+     */
+    @Override
+    public int skipSelfLoop(char[] symbols, int from, int to) {
+        if (!isInAccelerableState()) throw new IllegalStateException("Current state is not accelerable");
+
+        long[] bitmap = selfLoops[currentState];
+        int idx = from;
+        while (idx < to) {
+            char ch = symbols[idx];
+            int word = ch >>> 6;
+            if (word >= bitmap.length || (bitmap[word] & (1L << ch)) == 0)
+                break;
+            idx++;
+        }
+
+        if (profile != null) {
+            profile.recordStateVisits(currentState, idx - from);
+            for (int skipped = from; skipped < idx; skipped++)
+                profile.recordTransitionVisits(currentState, symbols[skipped], 1);
+        }
+        return idx;
+    }
+
+    /**
+     * Start recording visits of states and transitions into {@code profile},
+     * or stop recording if it is {@code null}.
+     */
+    public void setProfile(DFAProfile profile) {
+        if (profile != null && profile.getNumberOfStates() != numberOfStates)
+            throw new IllegalArgumentException("Profile is for a different number of states");
+
+        this.profile = profile;
+    }
+
+    public DFAProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return Whether both dfas accept exactly the same strings.
+     */
+    public boolean isEquivalent(DFA other) {
+        return !productReaches(other, (thisFinal, otherFinal) -> thisFinal != otherFinal);
+    }
+
+    /**
+     * @return Whether every string this dfa accepts is accepted by {@code other} too.
+     */
+    public boolean isSubsetOf(DFA other) {
+        return !productReaches(other, (thisFinal, otherFinal) -> thisFinal && !otherFinal);
+    }
+
+    /**
+     * @return Whether no string is accepted by both dfas.
+     */
+    public boolean isIntersectionEmpty(DFA other) {
+        return !productReaches(other, (thisFinal, otherFinal) -> thisFinal && otherFinal);
+    }
+
+    // Walk the pairs of states of both dfas reachable on the same strings, a dead state
+    // standing for all the rest, until a pair whose finality satisfies witness is found.
+    private boolean productReaches(DFA other, BiPredicate<Boolean, Boolean> witness) {
+        if (classes != other.classes)
+            throw new IllegalArgumentException("Dfas are over different char classes");
+
+        long width = other.numberOfStates + 1L;
+        Set<Long> seen = new HashSet<>();
+        ArrayDeque<Long> queue = new ArrayDeque<>();
+
+        long startPair = (startState + 1) * width + (other.startState + 1);
+        seen.add(startPair);
+        queue.add(startPair);
+
+        while (!queue.isEmpty()) {
+            long pair = queue.poll();
+            int state = (int) (pair / width) - 1, otherState = (int) (pair % width) - 1;
+
+            if (witness.test(finalStates.contains(state), other.finalStates.contains(otherState)))
+                return true;
+
+            Set<Character> symbols = new TreeSet<>();
+            if (state != DEAD_STATE)
+                symbols.addAll(transitions.get(state).keySet());
+            if (otherState != DEAD_STATE)
+                symbols.addAll(other.transitions.get(otherState).keySet());
+
+            for (char ch : symbols) {
+                int next = (state == DEAD_STATE) ? DEAD_STATE : transitions.get(state).getOrDefault(ch, DEAD_STATE);
+                int otherNext = (otherState == DEAD_STATE)
+                    ? DEAD_STATE : other.transitions.get(otherState).getOrDefault(ch, DEAD_STATE);
+
+                long nextPair = (next + 1) * width + (otherNext + 1);
+                if (seen.add(nextPair))
+                    queue.add(nextPair);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Make a copy of this dfa with the states renumbered, so that the rows of
+     * the transition table are laid out in the given order.
+     *
+     * @param order the old states, in their new order. {@code order[i]} becomes state {@code i}.
+     * @return The renumbered dfa, in its start configuration.
+     */
+    public DFA reorderStates(int[] order) {
+        if (order.length != numberOfStates)
+            throw new IllegalArgumentException("Order must contain every state once");
+
+        int[] newState = new int[numberOfStates];
+        Arrays.fill(newState, -1);
+        for (int idx = 0; idx < order.length; idx++) {
+            if (order[idx] < 0 || order[idx] >= numberOfStates || newState[order[idx]] != -1)
+                throw new IllegalArgumentException("Order must contain every state once");
+            newState[order[idx]] = idx;
         }
+
+        Set<Integer> newFinalStates = new TreeSet<>();
+        for (int state : finalStates)
+            newFinalStates.add(newState[state]);
+
+        DFA dfa = new DFA(numberOfStates, newState[startState], newFinalStates);
+        for (int idx = 0; idx < order.length; idx++)
+            for (Map.Entry<Character, Integer> e : transitions.get(order[idx]).entrySet())
+                dfa.addTransition(idx, e.getKey(), newState[e.getValue()]);
+        if (classes != null)
+            dfa.setCharClasses(classes);
+
+        return dfa;
     }
 
+    @Override
     public boolean isInDeadState() {
         return currentState == DEAD_STATE;
     }
 
+    @Override
     public void reset() {
         currentState = startState;
     }
@@ -98,6 +384,7 @@ public class DFA {
         }
 
         numberOfStates += by;
+        table = null;
     }
 
     public int getStartState() {
@@ -122,31 +409,87 @@ public class DFA {
         this.finalStates = new TreeSet<>(finalStates);
     }
 
+    @Override
     public boolean isInFinalState() {
         return finalStates.contains(currentState);
     }
 
+    /**
+     * @return The state reached from {@code state} on {@code on}, or {@link #DEAD_STATE} if there is no transition.
+     */
+    public int getNextState(int state, char on) {
+        if (state < 0 || state >= numberOfStates)
+            throw new IllegalArgumentException("Invalid state value");
+
+        return step(state, on);
+    }
+
+    /**
+     * @return The chars on which there is a transition out of {@code state}.
+     */
+    public Set<Character> getSymbols(int state) {
+        if (state < 0 || state >= numberOfStates)
+            throw new IllegalArgumentException("Invalid state value");
+
+        Set<Character> symbols = new TreeSet<>();
+        for (char symbol : transitions.get(state).keySet())
+            addChars(symbol, symbols);
+        return symbols;
+    }
+
+    @Override
+    public Set<Character> getStartSymbols() {
+        return getSymbols(startState);
+    }
+
     public Set<Character> getAlphabet() {
         Set<Character> alphabet = new TreeSet<>();
 
         for (Map<Character, Integer> t : transitions) {
-            alphabet.addAll(t.keySet());
+            for (char symbol : t.keySet())
+                addChars(symbol, alphabet);
         }
 
         return alphabet;
     }
 
+    // over classes the symbols are printed as the numbers of the classes
+    private String transitionsToString(Map<Character, Integer> transition) {
+        if (classes == null)
+            return StringEscapeUtils.escape(transition.toString());
+
+        Map<Integer, Integer> byClass = new TreeMap<>();
+        for (Map.Entry<Character, Integer> e : transition.entrySet())
+            byClass.put((int) e.getKey(), e.getValue());
+        return byClass.toString();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
 
         sb.append("    Start State: " + startState + "\n");
         sb.append("    Final States: " + finalStates + "\n");
-        sb.append("    Alphabet: " + StringEscapeUtils.escape(getAlphabet().toString()) + "\n");
+        if (selfLoops != null) {
+            List<Integer> accelerable = new ArrayList<>();
+            for (int state = 0; state < numberOfStates; state++)
+                if (isAccelerable(state)) accelerable.add(state);
+            sb.append("    Accelerable States: " + accelerable + "\n");
+        }
+        if (classes == null) {
+            sb.append("    Alphabet: " + StringEscapeUtils.escape(getAlphabet().toString()) + "\n");
+        }
+        else {
+            Set<Integer> used = new TreeSet<>();
+            for (Map<Character, Integer> t : transitions)
+                for (char symbol : t.keySet())
+                    used.add((int) symbol);
+            sb.append("    Alphabet: classes " + used + "\n");
+        }
         sb.append("    Transitions: " + "\n");
         sb.append(String.format("        %5s %s\n", "STATE", "TRANSITIONS"));
         for (int idx = 0; idx < transitions.size(); idx++) {
-            sb.append(String.format("        %5d %s\n", idx, StringEscapeUtils.escape(transitions.get(idx).toString())));
+            sb.append(String.format("        %5d %s\n", idx, transitionsToString(transitions.get(idx))));
         }
         sb.setLength(sb.length() - 1);
 
@@ -0,0 +1,92 @@
+package automata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Visit counts of the states and transitions of a {@link DFA}, recorded while
+ * it runs. A state is visited each time the dfa advances out of it.
+ */
+public class DFAProfile {
+    private final long[] stateVisits;
+    private final List<Map<Character, long[]>> transitionVisits;
+
+    public DFAProfile(int numberOfStates) {
+        stateVisits = new long[numberOfStates];
+        transitionVisits = new ArrayList<>(numberOfStates);
+        for (int idx = 0; idx < numberOfStates; idx++)
+            transitionVisits.add(new TreeMap<>());
+    }
+
+    public int getNumberOfStates() {
+        return stateVisits.length;
+    }
+
+    public void recordStateVisits(int state, long count) {
+        stateVisits[state] += count;
+    }
+
+    public void recordTransitionVisits(int from, char on, long count) {
+        long[] counter = transitionVisits.get(from).get(on);
+        if (counter == null)
+            transitionVisits.get(from).put(on, counter = new long[1]);
+        counter[0] += count;
+    }
+
+    public long getStateVisits(int state) {
+        return stateVisits[state];
+    }
+
+    public long getTransitionVisits(int from, char on) {
+        long[] counter = transitionVisits.get(from).get(on);
+        return (counter == null) ? 0 : counter[0];
+    }
+
+    public long getTotalVisits() {
+        long total = 0;
+        for (long visits : stateVisits)
+            total += visits;
+        return total;
+    }
+
+    /**
+     * @return The transitions out of {@code from} which were taken, with their counts.
+     */
+    public Map<Character, Long> getTransitionVisits(int from) {
+        Map<Character, Long> visits = new TreeMap<>();
+        for (Map.Entry<Character, long[]> e : transitionVisits.get(from).entrySet())
+            visits.put(e.getKey(), e.getValue()[0]);
+        return visits;
+    }
+
+    public void merge(DFAProfile other) {
+        if (other.getNumberOfStates() != getNumberOfStates())
+            throw new IllegalArgumentException("Profiles of different automata");
+
+        for (int state = 0; state < stateVisits.length; state++) {
+            stateVisits[state] += other.stateVisits[state];
+            for (Map.Entry<Character, long[]> e : other.transitionVisits.get(state).entrySet())
+                recordTransitionVisits(state, e.getKey(), e.getValue()[0]);
+        }
+    }
+
+    /**
+     * @return All the states, the most visited first. States visited equally
+     * often keep their relative order.
+     */
+    public int[] getStatesByVisits() {
+        Integer[] states = new Integer[stateVisits.length];
+        for (int idx = 0; idx < states.length; idx++)
+            states[idx] = idx;
+
+        Arrays.sort(states, (a, b) -> Long.compare(stateVisits[b], stateVisits[a]));
+
+        int[] order = new int[states.length];
+        for (int idx = 0; idx < order.length; idx++)
+            order[idx] = states[idx];
+        return order;
+    }
+}
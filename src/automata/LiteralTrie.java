@@ -0,0 +1,318 @@
+package automata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import utils.StringEscapeUtils;
+
+/**
+ * The literals of any number of rules in one trie, run as a single automaton:
+ * a symbol costs one transition lookup however many literals there are. Each
+ * node ending a literal outputs the rule of that literal, the lowest rule if
+ * several share it, so the longest literal matched so far and its rule are
+ * known at every step.
+ *
+ * <p>
+ * Matches are anchored at the start of the input, as tokens are, so the trie
+ * needs no failure links. The transitions are an open addressing hash from
+ * node and char to child, and the children of each node are also chained, to
+ * list them.
+ */
+public class LiteralTrie implements Automaton {
+    public static final int DEAD_STATE = -1, NO_RULE = -1;
+
+    private static final int ROOT = 0, DEFAULT_CAPACITY = 16;
+
+    private int numberOfStates;
+    // by node: the rule output there, the first child, the next sibling and the char leading to it
+    private int[] outputs, firstChild, nextSibling;
+    private char[] labels;
+    // node << 16 | char, plus 1 so that 0 marks an empty slot, and the child it leads to
+    private long[] keys;
+    private int[] targets;
+    private int mask;
+    private int currentState;
+
+    public LiteralTrie() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of nodes the trie holds before it grows.
+     */
+    public LiteralTrie(int capacity) {
+        capacity = Math.max(capacity, 1);
+        outputs = new int[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        labels = new char[capacity];
+
+        int slotCount = Integer.highestOneBit(capacity) << 2;
+        keys = new long[slotCount];
+        targets = new int[slotCount];
+        mask = slotCount - 1;
+
+        numberOfStates = 0;
+        newNode((char) 0);
+        currentState = ROOT;
+    }
+
+    /**
+     * The trie of the literals of a single rule.
+     */
+    public LiteralTrie(Collection<String> literals, int rule) {
+        this(countChars(literals) + 1);
+        for (String literal : literals)
+            addLiteral(literal, rule);
+    }
+
+    // shares the nodes and transitions of other, only the current state is its own
+    private LiteralTrie(LiteralTrie other) {
+        numberOfStates = other.numberOfStates;
+        outputs = other.outputs;
+        firstChild = other.firstChild;
+        nextSibling = other.nextSibling;
+        labels = other.labels;
+        keys = other.keys;
+        targets = other.targets;
+        mask = other.mask;
+        currentState = ROOT;
+    }
+
+    /**
+     * The fork shares the nodes of this trie, literals must not be added to
+     * either of them afterwards.
+     */
+    @Override
+    public LiteralTrie fork() {
+        return new LiteralTrie(this);
+    }
+
+    /**
+     * Add {@code literal} as a lexeme of {@code rule}. When rules share a
+     * literal, the lowest one is output. The empty literal is never matched.
+     */
+    public void addLiteral(CharSequence literal, int rule) {
+        if (rule < 0)
+            throw new IllegalArgumentException("Rules must not be negative");
+        if (literal.length() == 0)
+            return;
+
+        int node = ROOT;
+        for (int idx = 0; idx < literal.length(); idx++) {
+            char ch = literal.charAt(idx);
+            int child = step(node, ch);
+            if (child == DEAD_STATE)
+                child = addChild(node, ch);
+            node = child;
+        }
+
+        if (outputs[node] == NO_RULE || rule < outputs[node])
+            outputs[node] = rule;
+    }
+
+    private int addChild(int parent, char ch) {
+        int child = newNode(ch);
+        nextSibling[child] = firstChild[parent];
+        firstChild[parent] = child;
+
+        if (numberOfStates * 2 > keys.length)
+            growSlots();
+        int slot = findSlot(parent, ch);
+        keys[slot] = key(parent, ch);
+        targets[slot] = child;
+        return child;
+    }
+
+    private int newNode(char label) {
+        if (numberOfStates == outputs.length) {
+            int capacity = outputs.length * 2;
+            outputs = Arrays.copyOf(outputs, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            labels = Arrays.copyOf(labels, capacity);
+        }
+
+        int node = numberOfStates++;
+        outputs[node] = NO_RULE;
+        firstChild[node] = DEAD_STATE;
+        nextSibling[node] = DEAD_STATE;
+        labels[node] = label;
+        return node;
+    }
+
+    private void growSlots() {
+        long[] oldKeys = keys;
+        int[] oldTargets = targets;
+
+        keys = new long[oldKeys.length * 2];
+        targets = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int idx = 0; idx < oldKeys.length; idx++) {
+            if (oldKeys[idx] == 0)
+                continue;
+            int slot = hash(oldKeys[idx]) & mask;
+            while (keys[slot] != 0)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[idx];
+            targets[slot] = oldTargets[idx];
+        }
+    }
+
+    // the slot holding the transition, or the empty slot where it belongs
+    private int findSlot(int node, char ch) {
+        long key = key(node, ch);
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private int step(int node, char ch) {
+        int slot = findSlot(node, ch);
+        return (keys[slot] == 0) ? DEAD_STATE : targets[slot];
+    }
+
+    private static long key(int node, char ch) {
+        return (((long) node << 16) | ch) + 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int countChars(Collection<String> literals) {
+        int count = 0;
+        for (String literal : literals)
+            count += literal.length();
+        return count;
+    }
+
+    @Override
+    public void reset() {
+        currentState = ROOT;
+    }
+
+    @Override
+    public void advance(char ch) {
+        if (isInDeadState()) throw new IllegalStateException("Advancing while in dead state");
+
+        currentState = step(currentState, ch);
+    }
+
+    @Override
+    public boolean isInDeadState() {
+        return currentState == DEAD_STATE;
+    }
+
+    @Override
+    public boolean isInFinalState() {
+        return currentState != DEAD_STATE && outputs[currentState] != NO_RULE;
+    }
+
+    /**
+     * @return The rule of the literal ending at the current state, {@link #NO_RULE} if none does.
+     */
+    public int getMatchedRule() {
+        return (currentState == DEAD_STATE) ? NO_RULE : outputs[currentState];
+    }
+
+    @Override
+    public Set<Character> getStartSymbols() {
+        return getSymbols(ROOT);
+    }
+
+    /**
+     * A trie has no loops, so it is never accelerable.
+     */
+    @Override
+    public boolean isInAccelerableState() {
+        return false;
+    }
+
+    @Override
+    public int skipSelfLoop(char[] symbols, int from, int to) {
+        throw new IllegalStateException("Current state is not accelerable");
+    }
+
+    public int getNumberOfStates() {
+        return numberOfStates;
+    }
+
+    public int getStartState() {
+        return ROOT;
+    }
+
+    /**
+     * @return The rule output at {@code state}, {@link #NO_RULE} if no literal ends there.
+     */
+    public int getOutput(int state) {
+        checkState(state);
+        return outputs[state];
+    }
+
+    /**
+     * @return The state reached from {@code state} on {@code on}, or {@link #DEAD_STATE} if there is no transition.
+     */
+    public int getNextState(int state, char on) {
+        checkState(state);
+        return step(state, on);
+    }
+
+    /**
+     * @return The chars on which there is a transition out of {@code state}.
+     */
+    public Set<Character> getSymbols(int state) {
+        checkState(state);
+
+        Set<Character> symbols = new TreeSet<>();
+        for (int child = firstChild[state]; child != DEAD_STATE; child = nextSibling[child])
+            symbols.add(labels[child]);
+        return symbols;
+    }
+
+    /**
+     * @return The literals of the trie, in the order of a depth first walk.
+     */
+    public List<String> getLiterals() {
+        List<String> literals = new ArrayList<>();
+        collectLiterals(ROOT, new StringBuilder(), literals);
+        return literals;
+    }
+
+    private void collectLiterals(int node, StringBuilder prefix, List<String> literals) {
+        if (outputs[node] != NO_RULE)
+            literals.add(prefix.toString());
+        for (char ch : getSymbols(node)) {
+            prefix.append(ch);
+            collectLiterals(step(node, ch), prefix, literals);
+            prefix.setLength(prefix.length() - 1);
+        }
+    }
+
+    private void checkState(int state) {
+        if (state < 0 || state >= numberOfStates)
+            throw new IllegalArgumentException("Invalid state value");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        List<Integer> finals = new ArrayList<>();
+        for (int state = 0; state < numberOfStates; state++)
+            if (outputs[state] != NO_RULE) finals.add(state);
+
+        sb.append("    Number of States: " + numberOfStates + "\n");
+        sb.append("    Start State: " + ROOT + "\n");
+        sb.append("    Final States: " + finals + "\n");
+        sb.append("    Literals: " + StringEscapeUtils.escape(getLiterals().toString()));
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,286 @@
+package automata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Runs an {@link NFA} in all of its states at once, in the style of a Pike VM,
+ * for rules whose {@link DFA} would have too many states to build. The time per
+ * symbol is bounded by the number of nfa states, and nothing is built while
+ * scanning.
+ *
+ * <p>
+ * The transitions are compiled into flat arrays. The current and the next
+ * states are sparse sets, so a state reached twice is only kept once and a set
+ * is cleared in constant time, and the final states are a bitset.
+ */
+public class PikeVM implements Automaton {
+    private final int numberOfStates, startState;
+    private final long[] finalStates;
+    // transitions out of state s are at [start[s], start[s + 1]) of the other arrays
+    private final int[] epsilonStart, epsilonTargets;
+    private final int[] symbolStart, symbolTargets;
+    private final char[] symbols;
+    // the classes the symbols stand for, null if they are the chars themselves
+    private final CharClasses classes;
+
+    private final int[] startClosure;
+    private final boolean startIsFinal;
+    private final Set<Character> startSymbols;
+
+    private SparseSet current, next;
+    private final int[] stack;
+    private boolean inFinalState;
+
+    public PikeVM(NFA nfa) {
+        this(nfa, null);
+    }
+
+    /**
+     * Run an nfa whose symbols are classes of {@code classes}, or chars if it is {@code null}.
+     */
+    public PikeVM(NFA nfa, CharClasses classes) {
+        this.classes = classes;
+        numberOfStates = nfa.getNumberOfStates();
+        startState = nfa.getStartState();
+
+        finalStates = new long[(numberOfStates >>> 6) + 1];
+        for (int state : nfa.getFinalStates())
+            finalStates[state >>> 6] |= 1L << state;
+
+        List<Set<Integer>> epsilon = nfa.getEpsilonTransitions();
+        epsilonStart = new int[numberOfStates + 1];
+        for (int state = 0; state < numberOfStates; state++)
+            epsilonStart[state + 1] = epsilonStart[state] + epsilon.get(state).size();
+        epsilonTargets = new int[epsilonStart[numberOfStates]];
+        for (int state = 0, idx = 0; state < numberOfStates; state++)
+            for (int to : epsilon.get(state))
+                epsilonTargets[idx++] = to;
+
+        List<Map<Character, Set<Integer>>> normal = nfa.getNormalTransitions();
+        symbolStart = new int[numberOfStates + 1];
+        for (int state = 0; state < numberOfStates; state++) {
+            int count = 0;
+            for (Set<Integer> targets : normal.get(state).values())
+                count += targets.size();
+            symbolStart[state + 1] = symbolStart[state] + count;
+        }
+        symbols = new char[symbolStart[numberOfStates]];
+        symbolTargets = new int[symbolStart[numberOfStates]];
+        for (int state = 0, idx = 0; state < numberOfStates; state++) {
+            for (Map.Entry<Character, Set<Integer>> e : normal.get(state).entrySet()) {
+                for (int to : e.getValue()) {
+                    symbols[idx] = e.getKey();
+                    symbolTargets[idx++] = to;
+                }
+            }
+        }
+
+        current = new SparseSet(numberOfStates);
+        next = new SparseSet(numberOfStates);
+        stack = new int[numberOfStates];
+
+        // the closure of the start state is the same after every reset
+        startIsFinal = addClosure(startState, current);
+        startClosure = new int[current.size];
+        System.arraycopy(current.dense, 0, startClosure, 0, current.size);
+
+        Set<Character> starts = new TreeSet<>();
+        for (int state : startClosure) {
+            for (int idx = symbolStart[state]; idx < symbolStart[state + 1]; idx++) {
+                if (classes == null) {
+                    starts.add(symbols[idx]);
+                    continue;
+                }
+                for (char ch : classes.getChars(symbols[idx]))
+                    starts.add(ch);
+            }
+        }
+        startSymbols = Collections.unmodifiableSet(starts);
+
+        reset();
+    }
+
+    // shares the compiled transitions of other, with sets of its own
+    private PikeVM(PikeVM other) {
+        classes = other.classes;
+        numberOfStates = other.numberOfStates;
+        startState = other.startState;
+        finalStates = other.finalStates;
+        epsilonStart = other.epsilonStart;
+        epsilonTargets = other.epsilonTargets;
+        symbolStart = other.symbolStart;
+        symbols = other.symbols;
+        symbolTargets = other.symbolTargets;
+        startClosure = other.startClosure;
+        startIsFinal = other.startIsFinal;
+        startSymbols = other.startSymbols;
+
+        current = new SparseSet(numberOfStates);
+        next = new SparseSet(numberOfStates);
+        stack = new int[numberOfStates];
+        reset();
+    }
+
+    @Override
+    public PikeVM fork() {
+        return new PikeVM(this);
+    }
+
+    @Override
+    public void reset() {
+        current.clear();
+        for (int state : startClosure)
+            current.add(state);
+        inFinalState = startIsFinal;
+    }
+
+    @Override
+    public void advance(char ch) {
+        if (isInDeadState()) throw new IllegalStateException("Advancing while in dead state");
+
+        char symbol = (classes == null) ? ch : (char) classes.getClass(ch);
+        next.clear();
+        boolean reachedFinal = false;
+        for (int idx = 0; idx < current.size; idx++) {
+            int state = current.dense[idx];
+            for (int t = symbolStart[state]; t < symbolStart[state + 1]; t++)
+                if (symbols[t] == symbol)
+                    reachedFinal |= addClosure(symbolTargets[t], next);
+        }
+
+        SparseSet swap = current;
+        current = next;
+        next = swap;
+        inFinalState = reachedFinal;
+    }
+
+    // add the states reachable from state on epsilon transitions which are not in the set yet
+    private boolean addClosure(int state, SparseSet set) {
+        if (!set.add(state))
+            return false;
+
+        boolean reachedFinal = false;
+        int top = 0;
+        stack[top++] = state;
+        while (top > 0) {
+            int from = stack[--top];
+            reachedFinal |= isFinal(from);
+            for (int e = epsilonStart[from]; e < epsilonStart[from + 1]; e++)
+                if (set.add(epsilonTargets[e]))
+                    stack[top++] = epsilonTargets[e];
+        }
+
+        return reachedFinal;
+    }
+
+    private boolean isFinal(int state) {
+        return (finalStates[state >>> 6] & (1L << state)) != 0;
+    }
+
+    @Override
+    public boolean isInDeadState() {
+        return current.size == 0;
+    }
+
+    @Override
+    public boolean isInFinalState() {
+        return inFinalState;
+    }
+
+    @Override
+    public Set<Character> getStartSymbols() {
+        return startSymbols;
+    }
+
+    @Override
+    public boolean isInAccelerableState() {
+        return false;
+    }
+
+    @Override
+    public int skipSelfLoop(char[] symbols, int from, int to) {
+        throw new IllegalStateException("Current state is not accelerable");
+    }
+
+    public int getNumberOfStates() {
+        return numberOfStates;
+    }
+
+    /**
+     * @return The nfa states the vm is in, in the order they were reached.
+     */
+    public List<Integer> getCurrentStates() {
+        List<Integer> states = new ArrayList<>(current.size);
+        for (int idx = 0; idx < current.size; idx++)
+            states.add(current.dense[idx]);
+        return states;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        List<Integer> finals = new ArrayList<>();
+        for (int state = 0; state < numberOfStates; state++)
+            if (isFinal(state)) finals.add(state);
+
+        sb.append("    Number of States: " + numberOfStates + "\n");
+        sb.append("    Start State: " + startState + "\n");
+        sb.append("    Final States: " + finals + "\n");
+        sb.append("    Epsilon Transitions: " + epsilonTargets.length + "\n");
+        sb.append("    Symbol Transitions: " + symbolTargets.length);
+
+        return sb.toString();
+    }
+
+    // dense holds the members in insertion order, sparse their index in dense
+    private static class SparseSet {
+        final int[] dense, sparse;
+        int size;
+
+        SparseSet(int capacity) {
+            dense = new int[capacity];
+            sparse = new int[capacity];
+        }
+
+        boolean add(int value) {
+            int idx = sparse[value];
+            if (idx < size && dense[idx] == value)
+                return false;
+
+            sparse[value] = size;
+            dense[size++] = value;
+            return true;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    public static void main(String[] args) {
+        NFA nfa = new NFA(5, 0, Arrays.asList(2, 4));
+
+        nfa.addEpsilonTransition(0, 1);
+        nfa.addEpsilonTransition(0, 3);
+        nfa.addNormalTransition(1, 'a', 2);
+        nfa.addNormalTransition(2, 'a', 2);
+        nfa.addNormalTransition(3, 'b', 4);
+        nfa.addNormalTransition(4, 'b', 4);
+        nfa.addNormalTransition(4, 'c', 4);
+
+        PikeVM vm = new PikeVM(nfa);
+        System.out.println(vm.getCurrentStates());
+
+        for (int i = 0; i < args[0].length() && !vm.isInDeadState(); i++) {
+            vm.advance(args[0].charAt(i));
+            System.out.println(vm.getCurrentStates() + (vm.isInFinalState() ? " final" : ""));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package lexer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import automata.Automaton;
+import automata.LiteralTrie;
+
+/**
+ * The compiled rules of a {@link Lexer}, frozen: the automata, the token
+ * types, the mode actions and the rules of each mode. Nothing in it changes
+ * once it is built, so one instance may be shared by any number of threads,
+ * each tokenizing with a {@link LexerSession} of its own. A session only holds
+ * the scan state, the tables of the automata are shared.
+ *
+ * <p>
+ * The rules which only match literals are not scanned by an automaton each,
+ * all those of a mode are in one {@link LiteralTrie}, whose output competes
+ * with the automata of the other rules for the longest match and, at equal
+ * lengths, for the earliest rule.
+ */
+public final class CompiledLexer {
+    private final List<String> tokenTypes;
+    // never run, sessions run forks of them
+    private final Automaton[] automata;
+    private final ModeAction[] actions;
+    private final Set<String> skippedTypes;
+    private final List<String> modes;
+    private final Map<String, Integer> modeIndices;
+    // the rules of each mode scanned by their own automaton, by priority, the trie of the
+    // literal rules of the mode, null if it has none, and the chars which can start one of them
+    private final int[][] modeAutomata;
+    private final LiteralTrie[] modeTries;
+    private final BitSet[] modeStartChars;
+
+    /**
+     * @param literals the lexemes of each rule which only matches literals, {@code null} for the other rules.
+     */
+    CompiledLexer(List<String> tokenTypes, List<Automaton> automata, List<List<String>> literals,
+                  List<ModeAction> actions, Set<String> skippedTypes, List<String> modes,
+                  List<List<Integer>> modeAutomata, List<BitSet> modeStartChars) {
+        this.tokenTypes = Collections.unmodifiableList(new ArrayList<>(tokenTypes));
+        this.automata = new Automaton[automata.size()];
+        for (int idx = 0; idx < this.automata.length; idx++)
+            this.automata[idx] = automata.get(idx).fork();
+        this.actions = actions.toArray(new ModeAction[0]);
+        this.skippedTypes = Collections.unmodifiableSet(new TreeSet<>(skippedTypes));
+        this.modes = Collections.unmodifiableList(new ArrayList<>(modes));
+
+        Map<String, Integer> modeIndices = new TreeMap<>();
+        for (int mode = 0; mode < modes.size(); mode++)
+            modeIndices.put(modes.get(mode), mode);
+        this.modeIndices = Collections.unmodifiableMap(modeIndices);
+
+        this.modeAutomata = new int[modeAutomata.size()][];
+        this.modeTries = new LiteralTrie[modeAutomata.size()];
+        this.modeStartChars = new BitSet[modeStartChars.size()];
+        for (int mode = 0; mode < modes.size(); mode++) {
+            List<Integer> scanned = new ArrayList<>();
+            for (int rule : modeAutomata.get(mode)) {
+                if (literals.get(rule) == null) {
+                    scanned.add(rule);
+                    continue;
+                }
+
+                if (modeTries[mode] == null)
+                    modeTries[mode] = new LiteralTrie();
+                for (String literal : literals.get(rule))
+                    modeTries[mode].addLiteral(literal, rule);
+            }
+
+            this.modeAutomata[mode] = new int[scanned.size()];
+            for (int idx = 0; idx < scanned.size(); idx++)
+                this.modeAutomata[mode][idx] = scanned.get(idx);
+            this.modeStartChars[mode] = (BitSet) modeStartChars.get(mode).clone();
+        }
+    }
+
+    /**
+     * @return A new session, with automata of its own, for one thread to tokenize with.
+     */
+    public LexerSession newSession() {
+        return new LexerSession(this, forkAutomata());
+    }
+
+    Automaton[] forkAutomata() {
+        Automaton[] forks = new Automaton[automata.length];
+        for (int idx = 0; idx < forks.length; idx++)
+            forks[idx] = automata[idx].fork();
+        return forks;
+    }
+
+    /**
+     * @return A fork of the trie of each mode, {@code null} for the modes without literal rules.
+     */
+    LiteralTrie[] forkTries() {
+        LiteralTrie[] forks = new LiteralTrie[modeTries.length];
+        for (int mode = 0; mode < forks.length; mode++)
+            forks[mode] = (modeTries[mode] == null) ? null : modeTries[mode].fork();
+        return forks;
+    }
+
+    public Set<String> getTokenTypes() {
+        return new TreeSet<>(tokenTypes);
+    }
+
+    public Set<String> getSkippedTypes() {
+        return skippedTypes;
+    }
+
+    public List<String> getModes() {
+        return modes;
+    }
+
+    int getNumberOfRules() {
+        return tokenTypes.size();
+    }
+
+    String getTokenType(int rule) {
+        return tokenTypes.get(rule);
+    }
+
+    ModeAction getAction(int rule) {
+        return actions[rule];
+    }
+
+    /**
+     * @return The index of {@code mode}, or -1 if it is not declared.
+     */
+    int getModeIndex(String mode) {
+        Integer idx = modeIndices.get(mode);
+        return (idx == null) ? -1 : idx;
+    }
+
+    String getModeName(int mode) {
+        return modes.get(mode);
+    }
+
+    /**
+     * @return The rules active in {@code mode} and scanned by their own
+     * automaton, by priority, the literal rules left out. Not to be changed.
+     */
+    int[] getRules(int mode) {
+        return modeAutomata[mode];
+    }
+
+    /**
+     * @return The chars which can start a token in {@code mode}. Not to be changed.
+     */
+    BitSet getStartChars(int mode) {
+        return modeStartChars[mode];
+    }
+}
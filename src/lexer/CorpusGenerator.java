@@ -0,0 +1,503 @@
+package lexer;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import automata.Automaton;
+import automata.DFA;
+import automata.LiteralTrie;
+
+/**
+ * Generate a program file of a given size out of the rules of a definitions
+ * file, together with the tokens the lexer is expected to find in it.
+ *
+ * <p>
+ * Each token is a random walk over the dfa of a rule, or over the trie of a
+ * literal rule, from its start state to a final state, and the token types are picked by weight. Tokens are separated
+ * by lexemes of the separator type, and every token is checked against all the
+ * rules of the initial mode, together with the separator and the token after
+ * it, until every rule has given up, so the expected tokens are exactly the
+ * ones the lexer finds. Rules with a mode action and rules scanned by a pike vm are not
+ * walked. The same seed gives the same files.
+ */
+public class CorpusGenerator {
+    public static final String DEFAULT_SEPARATOR_TYPE = "WHITESPACE";
+    public static final int DEFAULT_MAX_TOKEN_LENGTH = 16, MAX_SEPARATOR_LENGTH = 2;
+
+    private static final int MAX_TRIES = 1000;
+    // chance of stopping in a final state before the wanted length is reached
+    private static final double STOP_CHANCE = 0.25;
+
+    private final Lexer lexer;
+    private final Random random;
+    private final int[] rules;
+    private final Map<String, List<RuleWalker>> walkers;
+    private final Map<String, Double> weights;
+    private String separatorType;
+    private int maxTokenLength;
+
+    // per run
+    private String[] types;
+    private double[] cumulativeWeights;
+    private Writer program, expected;
+    private Set<String> wantedTypes;
+    private long id, offset, lineStart, row;
+    private boolean afterCR;
+    private int matchRule;
+    private boolean liveAtEnd;
+
+    public CorpusGenerator(Lexer lexer, long seed) {
+        this.lexer = lexer;
+        this.random = new Random(seed);
+        this.rules = lexer.getRules(Lexer.INITIAL_MODE);
+
+        walkers = new TreeMap<>();
+        weights = new LinkedHashMap<>();
+        for (int rule : rules) {
+            Automaton automaton = lexer.getAutomaton(rule);
+            if (lexer.getAction(rule).kind != ModeAction.Kind.NONE)
+                continue;
+
+            RuleWalker walker;
+            if (automaton instanceof DFA)
+                walker = RuleWalker.of((DFA) automaton);
+            else if (automaton instanceof LiteralTrie)
+                walker = RuleWalker.of((LiteralTrie) automaton);
+            else
+                continue;
+            if (!walker.canWalk())
+                continue;
+
+            String type = lexer.getTokenType(rule);
+            walkers.computeIfAbsent(type, t -> new ArrayList<>()).add(walker);
+            weights.putIfAbsent(type, 1.0);
+        }
+
+        separatorType = DEFAULT_SEPARATOR_TYPE;
+        maxTokenLength = DEFAULT_MAX_TOKEN_LENGTH;
+    }
+
+    /**
+     * @return The token types which can be generated.
+     */
+    public Set<String> getTypes() {
+        return walkers.keySet();
+    }
+
+    /**
+     * Set how often tokens of {@code type} are generated, relative to the other
+     * types. All types start with weight 1, 0 leaves the type out.
+     */
+    public void setWeight(String type, double weight) {
+        if (!walkers.containsKey(type))
+            throw new IllegalArgumentException("No rule of type " + type + " can be generated");
+        if (weight < 0)
+            throw new IllegalArgumentException("Weights must not be negative");
+
+        weights.put(type, weight);
+    }
+
+    /**
+     * Set the type of the lexemes put between tokens. Its own weight is ignored.
+     */
+    public void setSeparatorType(String type) {
+        if (!walkers.containsKey(type))
+            throw new IllegalArgumentException("No rule of type " + type + " can be generated");
+
+        separatorType = type;
+    }
+
+    public void setMaxTokenLength(int maxTokenLength) {
+        if (maxTokenLength <= 0)
+            throw new IllegalArgumentException("Token length must be positive");
+
+        this.maxTokenLength = maxTokenLength;
+    }
+
+    /**
+     * Write tokens to {@code program} until it holds at least {@code size} chars,
+     * and the wanted ones to {@code expected}, formatted as the lexer writes them,
+     * each ended by the line separator of the platform.
+     *
+     * @return The number of tokens generated, separators included.
+     * @throws IOException if writing fails.
+     */
+    public long generate(Writer program, Writer expected, long size, Set<String> wantedTypes) throws IOException {
+        if (!walkers.containsKey(separatorType))
+            throw new IllegalStateException("No rule of the separator type " + separatorType + " can be generated");
+        prepareWeights();
+
+        this.program = program;
+        this.expected = expected;
+        this.wantedTypes = wantedTypes;
+        id = offset = lineStart = 0;
+        row = 1;
+        afterCR = false;
+
+        expected.write(LexToken.getFormattedHeading());
+        expected.write(System.lineSeparator());
+
+        Token token = nextToken();
+        while (true) {
+            emit(token);
+            if (offset >= size)
+                break;
+
+            Token next = null, separator = null;
+            for (int tries = 0; tries < MAX_TRIES && separator == null; tries++) {
+                next = nextToken();
+                separator = nextSeparator(token, next);
+            }
+            if (separator == null)
+                throw new IllegalStateException("No " + separatorType + " separates the tokens after " + token.lexeme);
+
+            emit(separator);
+            token = next;
+        }
+
+        return id;
+    }
+
+    private void prepareWeights() {
+        List<String> picked = new ArrayList<>();
+        List<Double> cumulative = new ArrayList<>();
+        double total = 0;
+        for (Map.Entry<String, Double> e : weights.entrySet()) {
+            if (e.getKey().equals(separatorType) || e.getValue() == 0)
+                continue;
+            total += e.getValue();
+            picked.add(e.getKey());
+            cumulative.add(total);
+        }
+        if (picked.isEmpty())
+            throw new IllegalStateException("No token type to generate");
+
+        types = picked.toArray(new String[0]);
+        cumulativeWeights = new double[cumulative.size()];
+        for (int idx = 0; idx < cumulativeWeights.length; idx++)
+            cumulativeWeights[idx] = cumulative.get(idx);
+    }
+
+    private Token nextToken() {
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            double pick = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+            int idx = Arrays.binarySearch(cumulativeWeights, pick);
+            String type = types[(idx < 0) ? -idx - 1 : Math.min(idx + 1, types.length - 1)];
+
+            Token token = walk(type, maxTokenLength);
+            if (token != null)
+                return token;
+        }
+
+        throw new IllegalStateException("No token could be generated");
+    }
+
+    // the separator must end both the token before it and itself where they are meant to end, and
+    // every rule must have given up before the next token ends, so no later text can change the matches
+    private Token nextSeparator(Token before, Token after) {
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            Token separator = walk(separatorType, MAX_SEPARATOR_LENGTH);
+            if (separator == null)
+                continue;
+
+            if (longestMatch(before.lexeme + separator.lexeme + after.lexeme) == before.lexeme.length() && !liveAtEnd
+                    && longestMatch(separator.lexeme + after.lexeme) == separator.lexeme.length() && !liveAtEnd)
+                return separator;
+        }
+
+        return null;
+    }
+
+    // walk a rule of the type, then find the type the lexer gives the lexeme, which may be another one
+    private Token walk(String type, int maxLength) {
+        List<RuleWalker> ofType = walkers.get(type);
+        RuleWalker walker = ofType.get(random.nextInt(ofType.size()));
+        String lexeme = walker.walk(random, 1 + random.nextInt(maxLength));
+
+        if (longestMatch(lexeme) != lexeme.length() || lexer.getAction(matchRule).kind != ModeAction.Kind.NONE)
+            return null;
+        return new Token(lexeme, lexer.getTokenType(matchRule));
+    }
+
+    // the length of the match the lexer takes at the start of text, its rule in matchRule, and in
+    // liveAtEnd whether some rule could still match more after the text
+    private int longestMatch(String text) {
+        for (int rule : rules)
+            lexer.getAutomaton(rule).reset();
+
+        int length = 0;
+        matchRule = -1;
+        liveAtEnd = true;
+        for (int idx = 0; idx < text.length(); idx++) {
+            boolean live = false;
+            for (int rule : rules) {
+                Automaton automaton = lexer.getAutomaton(rule);
+                if (!automaton.isInDeadState()) {
+                    automaton.advance(text.charAt(idx));
+                    live |= !automaton.isInDeadState();
+                }
+            }
+            if (!live) {
+                liveAtEnd = false;
+                break;
+            }
+
+            for (int rule : rules) {
+                if (lexer.getAutomaton(rule).isInFinalState()) {
+                    length = idx + 1;
+                    matchRule = rule;
+                    break;
+                }
+            }
+        }
+
+        return length;
+    }
+
+    // lines end at \n, \r\n and a lone \r, as in utils.LineIndex
+    private void emit(Token token) throws IOException {
+        String lexeme = token.lexeme;
+        for (int idx = 0; idx < lexeme.length(); idx++) {
+            char ch = lexeme.charAt(idx);
+            if (afterCR && ch != '\n') {
+                row++;
+                lineStart = offset + idx;
+            }
+
+            if (idx == 0 && wantedTypes.contains(token.type)) {
+                expected.write(LexToken.getFormattedString(id, row, (int) (offset - lineStart) + 1, token.type, lexeme));
+                expected.write(System.lineSeparator());
+            }
+
+            if (ch == '\n') {
+                row++;
+                lineStart = offset + idx + 1;
+            }
+            afterCR = (ch == '\r');
+        }
+
+        program.write(lexeme);
+        offset += lexeme.length();
+        id++;
+    }
+
+    private static class Token {
+        final String lexeme, type;
+
+        Token(String lexeme, String type) {
+            this.lexeme = lexeme;
+            this.type = type;
+        }
+    }
+
+    private static class RuleWalker {
+        final int start;
+        final boolean[] finals;
+        final char[][] symbols;
+        final int[][] targets;
+        // fewest transitions to a final state, -1 if none can be reached
+        final int[] distance;
+
+        static RuleWalker of(DFA dfa) {
+            int n = dfa.getNumberOfStates();
+            boolean[] finals = new boolean[n];
+            for (int state : dfa.getFinalStates())
+                finals[state] = true;
+
+            char[][] symbols = new char[n][];
+            int[][] targets = new int[n][];
+            for (int state = 0; state < n; state++) {
+                Set<Character> out = dfa.getSymbols(state);
+                symbols[state] = new char[out.size()];
+                targets[state] = new int[out.size()];
+                int idx = 0;
+                for (char ch : out) {
+                    symbols[state][idx] = ch;
+                    targets[state][idx++] = dfa.getNextState(state, ch);
+                }
+            }
+            return new RuleWalker(dfa.getStartState(), finals, symbols, targets);
+        }
+
+        static RuleWalker of(LiteralTrie trie) {
+            int n = trie.getNumberOfStates();
+            boolean[] finals = new boolean[n];
+            char[][] symbols = new char[n][];
+            int[][] targets = new int[n][];
+            for (int state = 0; state < n; state++) {
+                finals[state] = trie.getOutput(state) != LiteralTrie.NO_RULE;
+                Set<Character> out = trie.getSymbols(state);
+                symbols[state] = new char[out.size()];
+                targets[state] = new int[out.size()];
+                int idx = 0;
+                for (char ch : out) {
+                    symbols[state][idx] = ch;
+                    targets[state][idx++] = trie.getNextState(state, ch);
+                }
+            }
+            return new RuleWalker(trie.getStartState(), finals, symbols, targets);
+        }
+
+        RuleWalker(int start, boolean[] finals, char[][] symbols, int[][] targets) {
+            int n = finals.length;
+            this.start = start;
+            this.finals = finals;
+            this.symbols = symbols;
+            this.targets = targets;
+
+            List<List<Integer>> incoming = new ArrayList<>();
+            for (int state = 0; state < n; state++)
+                incoming.add(new ArrayList<>());
+            for (int state = 0; state < n; state++)
+                for (int target : targets[state])
+                    incoming.get(target).add(state);
+
+            distance = new int[n];
+            Arrays.fill(distance, -1);
+            int[] queue = new int[n];
+            int head = 0, tail = 0;
+            for (int state = 0; state < n; state++) {
+                if (finals[state]) {
+                    distance[state] = 0;
+                    queue[tail++] = state;
+                }
+            }
+            while (head < tail) {
+                int state = queue[head++];
+                for (int from : incoming.get(state)) {
+                    if (distance[from] == -1) {
+                        distance[from] = distance[state] + 1;
+                        queue[tail++] = from;
+                    }
+                }
+            }
+        }
+
+        // some non empty lexeme is accepted
+        boolean canWalk() {
+            for (int target : targets[start])
+                if (distance[target] != -1)
+                    return true;
+            return false;
+        }
+
+        // once the lexeme is long enough, only transitions getting closer to a final state are taken
+        String walk(Random random, int length) {
+            StringBuilder sb = new StringBuilder();
+            int state = start;
+
+            while (true) {
+                boolean closer = sb.length() >= length;
+                int candidates = 0;
+                for (int target : targets[state])
+                    if (isCandidate(state, target, closer))
+                        candidates++;
+
+                if (finals[state] && sb.length() > 0
+                        && (candidates == 0 || closer || random.nextDouble() < STOP_CHANCE))
+                    return sb.toString();
+
+                int pick = random.nextInt(candidates);
+                for (int idx = 0; idx < targets[state].length; idx++) {
+                    if (isCandidate(state, targets[state][idx], closer) && pick-- == 0) {
+                        sb.append(symbols[state][idx]);
+                        state = targets[state][idx];
+                        break;
+                    }
+                }
+            }
+        }
+
+        private boolean isCandidate(int from, int to, boolean closer) {
+            return distance[to] != -1 && (!closer || distance[to] < distance[from]);
+        }
+    }
+
+    private static long parseSize(String size) {
+        long unit = 1;
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K': unit = 1L << 10; break;
+            case 'M': unit = 1L << 20; break;
+            case 'G': unit = 1L << 30; break;
+            default:  return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, size.length() - 1)) * unit;
+    }
+
+    private static void showExecutionFormat() {
+        System.out.println(
+            "Format: java -cp classpath lexer.CorpusGenerator regexFilePath programFilePath expectedTokensFilePath size "
+            + "[-seed n] [-weights TYPE=w,TYPE=w] [-separator TYPE] [-max-token-length n]"
+        );
+        System.out.println("Arguments in square brackets denote optional.");
+        System.out.println("size: Number of chars to generate, with an optional K, M or G suffix.");
+        System.out.println("-weights: Relative weights of token types, the others have weight 1.");
+        System.out.println("-separator: Type of the lexemes between tokens, " + DEFAULT_SEPARATOR_TYPE + " by default.");
+    }
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        long seed = 0;
+        Map<String, Double> typeWeights = new LinkedHashMap<>();
+        String separator = DEFAULT_SEPARATOR_TYPE;
+        int maxTokenLength = DEFAULT_MAX_TOKEN_LENGTH;
+        long size;
+
+        try {
+            for (int idx = 0; idx < args.length; idx++) {
+                switch (args[idx]) {
+                    case "-seed":               seed = Long.parseLong(args[++idx]); break;
+                    case "-separator":          separator = args[++idx]; break;
+                    case "-max-token-length":   maxTokenLength = Integer.parseInt(args[++idx]); break;
+                    case "-weights":
+                        for (String weight : args[++idx].split(",")) {
+                            int splitAt = weight.lastIndexOf('=');
+                            typeWeights.put(weight.substring(0, splitAt), Double.parseDouble(weight.substring(splitAt + 1)));
+                        }
+                        break;
+                    default:                    positional.add(args[idx]);
+                }
+            }
+            if (positional.size() != 4)
+                throw new IllegalArgumentException("Expected 4 arguments");
+            size = parseSize(positional.get(3));
+        }
+        catch (RuntimeException e) {
+            showExecutionFormat();
+            return;
+        }
+
+        Lexer lexer = new Lexer(positional.get(0), false);
+        CorpusGenerator generator = new CorpusGenerator(lexer, seed);
+        Set<String> wantedTypes = lexer.getTokenTypes();
+        wantedTypes.removeAll(lexer.getSkippedTypes());
+        wantedTypes.remove("WHITESPACE");
+
+        try (Writer program = new BufferedWriter(new FileWriter(positional.get(1)), 1 << 16);
+             Writer expected = new BufferedWriter(new FileWriter(positional.get(2)), 1 << 16)) {
+            generator.setSeparatorType(separator);
+            generator.setMaxTokenLength(maxTokenLength);
+            for (Map.Entry<String, Double> e : typeWeights.entrySet())
+                generator.setWeight(e.getKey(), e.getValue());
+
+            long tokens = generator.generate(program, expected, size, wantedTypes);
+            System.out.println("Generated " + tokens + " tokens of types " + generator.getTypes());
+        }
+        catch (IllegalArgumentException | IllegalStateException e) {
+            System.err.println(e.getMessage());
+        }
+        catch (IOException e) {
+            System.err.println("I/O error while writing generated files.");
+        }
+    }
+}
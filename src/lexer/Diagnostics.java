@@ -0,0 +1,102 @@
+package lexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.StringEscapeUtils;
+
+/**
+ * Collects the invalid spans found while tokenizing a program.
+ *
+ * <p>
+ * Only the first {@code maxErrors} spans are kept, each with at most
+ * {@code maxSnippetLength} characters of its text. Every later span is only
+ * counted, so a corrupted or binary input costs no more than a few counters.
+ */
+public class Diagnostics {
+    public static final int DEFAULT_MAX_ERRORS = 100, DEFAULT_MAX_SNIPPET_LENGTH = 32;
+
+    private final int maxErrors, maxSnippetLength;
+    private final List<LexToken> errors;
+    private int errorCount;
+    private long invalidCharCount;
+
+    public Diagnostics() {
+        this(DEFAULT_MAX_ERRORS, DEFAULT_MAX_SNIPPET_LENGTH);
+    }
+
+    public Diagnostics(int maxErrors, int maxSnippetLength) {
+        if (maxErrors < 0 || maxSnippetLength < 0)
+            throw new IllegalArgumentException("Limits must not be negative");
+
+        this.maxErrors = maxErrors;
+        this.maxSnippetLength = maxSnippetLength;
+        errors = new ArrayList<>();
+    }
+
+    /**
+     * Record one invalid span.
+     *
+     * @param error an {@link Lexer#ERROR_TYPE} token, or {@code null} if the
+     * caller did not build one because {@link #isFull()} was {@code true}.
+     * @param length the full length of the span, the lexeme of {@code error}
+     * may be shorter.
+     */
+    public void report(LexToken error, int length) {
+        if (error != null && errors.size() < maxErrors)
+            errors.add(error);
+        errorCount++;
+        invalidCharCount += length;
+    }
+
+    /**
+     * Count the spans of an earlier part of the input, of which none is kept.
+     */
+    void addCounts(int errorCount, long invalidCharCount) {
+        this.errorCount += errorCount;
+        this.invalidCharCount += invalidCharCount;
+    }
+
+    public boolean isFull() {
+        return errors.size() >= maxErrors;
+    }
+
+    public int getMaxSnippetLength() {
+        return maxSnippetLength;
+    }
+
+    public List<LexToken> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    public long getInvalidCharCount() {
+        return invalidCharCount;
+    }
+
+    public boolean isTruncated() {
+        return errorCount > errors.size();
+    }
+
+    /**
+     * @return All the kept errors, one per line, followed by a summary line.
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+
+        for (LexToken error : errors) {
+            sb.append(
+                String.format("Invalid match @ row %d col %d: %s\n",
+                                error.getRow(), error.getCol(), StringEscapeUtils.escape(error.lexeme))
+            );
+        }
+        if (isTruncated())
+            sb.append(String.format("... %d more invalid matches not shown\n", errorCount - errors.size()));
+        sb.append(String.format("%d invalid matches, %d invalid chars", errorCount, invalidCharCount));
+
+        return sb.toString();
+    }
+}
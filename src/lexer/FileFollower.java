@@ -0,0 +1,251 @@
+package lexer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import utils.SingleByteReader;
+
+/**
+ * Tokenize a file which keeps growing, like a log, handing each token to the
+ * sink as soon as the chars after it show that it is complete. At the end of
+ * the file the lexer waits for more bytes, woken by a {@link WatchService} on
+ * the directory of the file or by polling its size, so the unfinished token
+ * at the end is carried over until the rest of it is written.
+ *
+ * <p>
+ * A file which is truncated, or replaced by another one at the same path as
+ * when logs are rotated, ends the current run, flushing the last token, and
+ * the new contents are tokenized from their start, with ids starting again
+ * from 0. The rows of the tokens are looked up as they are found and only the
+ * lines after the last token are kept, not the start of every line the file
+ * ever had.
+ */
+public class FileFollower {
+    public static final long DEFAULT_POLL_INTERVAL = 200;
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private final Lexer lexer;
+    private final Charset charset;
+    private long pollInterval;
+    private Runnable onIdle;
+    private Consumer<String> onRestart;
+    private volatile boolean stopped;
+
+    public FileFollower(Lexer lexer, Charset charset) {
+        this.lexer = lexer;
+        this.charset = charset;
+        this.pollInterval = DEFAULT_POLL_INTERVAL;
+    }
+
+    /**
+     * The longest wait, in milliseconds, before checking the file again when no change was notified.
+     */
+    public void setPollInterval(long pollInterval) {
+        if (pollInterval <= 0)
+            throw new IllegalArgumentException("Poll interval must be positive");
+
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Run {@code onIdle} each time all the bytes of the file are scanned and
+     * the lexer starts waiting, for instance to flush the output.
+     */
+    public void setOnIdle(Runnable onIdle) {
+        this.onIdle = onIdle;
+    }
+
+    /**
+     * Run {@code onRestart} with the reason, {@code "truncated"} or {@code "rotated"},
+     * before the file is tokenized again from its start.
+     */
+    public void setOnRestart(Consumer<String> onRestart) {
+        this.onRestart = onRestart;
+    }
+
+    /**
+     * Make {@link #follow} return once the bytes already written are scanned. May be called from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Tokenize the file and the bytes appended to it until {@link #stop()} is called.
+     *
+     * @throws IOException if the file cannot be read or watched.
+     */
+    public void follow(String programFilePath, Set<String> wantedTypes, Consumer<LexToken> sink) throws IOException {
+        Path path = Paths.get(programFilePath).toAbsolutePath();
+        stopped = false;
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+            while (!stopped) {
+                // a rotated file may take a while to be created again
+                if (!Files.exists(path)) {
+                    waitForChange(watcher);
+                    continue;
+                }
+
+                String restart;
+                try (FollowReader reader = new FollowReader(path, watcher)) {
+                    lexer.tokenize(reader, wantedTypes, sink);
+                    if (reader.failure != null)
+                        throw reader.failure;
+                    restart = reader.restart;
+                }
+                catch (NoSuchFileException e) {
+                    continue;
+                }
+
+                if (restart != null && onRestart != null)
+                    onRestart.accept(restart);
+            }
+        }
+    }
+
+    private void waitForChange(WatchService watcher) {
+        try {
+            WatchKey key = watcher.poll(pollInterval, TimeUnit.MILLISECONDS);
+            if (key != null) {
+                // which file changed does not matter, the file is checked again anyway
+                key.pollEvents();
+                key.reset();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+        catch (ClosedWatchServiceException e) {
+            stopped = true;
+        }
+    }
+
+    private static Object getFileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    // The chars of the file, waiting at its end for more to be written. The end of input is
+    // only reported once the follower is stopped or the file is truncated or replaced.
+    private class FollowReader extends Reader {
+        final Path path;
+        final WatchService watcher;
+        final FileChannel channel;
+        final Object fileKey;
+        final CharsetDecoder decoder;
+        final boolean ascii;
+        // bytes read from the file and not yet turned into chars
+        final ByteBuffer bytes;
+        String restart;
+        IOException failure;
+
+        FollowReader(Path path, WatchService watcher) throws IOException {
+            this.path = path;
+            this.watcher = watcher;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.fileKey = getFileKey(path);
+            this.ascii = charset.equals(StandardCharsets.US_ASCII);
+            this.decoder = SingleByteReader.isSingleByte(charset) ? null : charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.bytes = ByteBuffer.allocate(BLOCK_SIZE);
+            bytes.flip();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0)
+                return 0;
+
+            // the lexer only sees the end of input as -1, a failure is reported once it returns
+            try {
+                while (true) {
+                    int read = readAvailable(cbuf, off, len);
+                    if (read > 0)
+                        return read;
+                    if (stopped || (restart = checkReplaced()) != null)
+                        return -1;
+
+                    if (onIdle != null)
+                        onIdle.run();
+                    waitForChange(watcher);
+                }
+            }
+            catch (IOException e) {
+                failure = e;
+                stopped = true;
+                return -1;
+            }
+        }
+
+        // the chars of the bytes written so far, 0 if there are none yet
+        private int readAvailable(char[] cbuf, int off, int len) throws IOException {
+            while (true) {
+                int produced;
+                if (decoder == null) {
+                    produced = Math.min(len, bytes.remaining());
+                    SingleByteReader.widen(bytes.array(), bytes.position(), produced, cbuf, off, ascii);
+                    bytes.position(bytes.position() + produced);
+                }
+                else {
+                    CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+                    decoder.decode(bytes, out, false);
+                    produced = out.position() - off;
+                }
+                if (produced > 0)
+                    return produced;
+
+                // the bytes left, if any, are the start of a char whose end is not written yet
+                bytes.compact();
+                int read = channel.read(bytes);
+                bytes.flip();
+                if (read <= 0)
+                    return 0;
+            }
+        }
+
+        private String checkReplaced() throws IOException {
+            if (channel.size() < channel.position())
+                return "truncated";
+            try {
+                if (!Objects.equals(getFileKey(path), fileKey))
+                    return "rotated";
+            }
+            catch (NoSuchFileException e) {
+                return "rotated";
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
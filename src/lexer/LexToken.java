@@ -1,15 +1,66 @@
 package lexer;
 
+import utils.LineIndex;
+
 public class LexToken {
-    public final int id, row, col;
+    public static final int NO_SYMBOL = -1;
+
+    public final long id;
+    public final long offset;
     public final String tokenType, lexeme;
+    public final int symbol;
+    // the lines the row and column are looked up in, until they are resolved
+    private LineIndex lineIndex;
+    private long row = -1;
+    private int col = -1;
+
+    /**
+     * @param id the token id.
+     * @param offset the offset of the first char of the token in the input.
+     * @param lineIndex the lines of the input, or {@code null} if lines are not tracked.
+     * @param tokenType the token type.
+     * @param lexeme the lexeme.
+     */
+    public LexToken(long id, long offset, LineIndex lineIndex, String tokenType, String lexeme) {
+        this(id, offset, lineIndex, tokenType, lexeme, NO_SYMBOL);
+    }
 
-    public LexToken(int id, int row, int col, String tokenType, String lexeme) {
+    /**
+     * @param symbol the symbol id of the lexeme, or {@link #NO_SYMBOL} if it is not interned.
+     */
+    public LexToken(long id, long offset, LineIndex lineIndex, String tokenType, String lexeme, int symbol) {
         this.id = id;
-        this.row = row;
-        this.col = col;
+        this.offset = offset;
+        this.lineIndex = lineIndex;
         this.tokenType = tokenType;
         this.lexeme = lexeme;
+        this.symbol = symbol;
+    }
+
+    /**
+     * @return The row of the token, or -1 if lines are not tracked.
+     */
+    public long getRow() {
+        return (lineIndex == null) ? row : lineIndex.getRow(offset);
+    }
+
+    /**
+     * @return The column of the token, or -1 if lines are not tracked.
+     */
+    public int getCol() {
+        return (lineIndex == null) ? col : lineIndex.getCol(offset);
+    }
+
+    /**
+     * Look up the row and column now and keep them, so that the token no
+     * longer reads the line index, which may then change on another thread.
+     */
+    void resolveLines() {
+        if (lineIndex == null)
+            return;
+        row = lineIndex.getRow(offset);
+        col = lineIndex.getCol(offset);
+        lineIndex = null;
     }
 
     public static String getFormattedHeading() {
@@ -17,6 +68,10 @@ public class LexToken {
     }
 
     public String getFormattedString() {
+        return getFormattedString(id, getRow(), getCol(), tokenType, lexeme);
+    }
+
+    static String getFormattedString(long id, long row, int col, String tokenType, String lexeme) {
         return String.format("%5d %5d %5d %-15s%s", id, row, col, tokenType, lexeme);
     }
 }
@@ -4,61 +4,149 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import algorithms.NFAFragmentCache;
 import algorithms.SubsetConstruction;
 import algorithms.Thompson;
+import automata.Automaton;
+import automata.CharClasses;
 import automata.DFA;
+import automata.DFAProfile;
+import automata.LiteralTrie;
 import automata.NFA;
+import automata.PikeVM;
 import regex.Regex;
+import regex.RegexSyntaxException;
 import regex.RegexTree;
-import utils.Buffer;
-import utils.StringEscapeUtils;
+import regex.RegexTreeNodePool;
 
 public class Lexer {
-    public static class PairOfInts {
-        public final int first, second;
-        public PairOfInts(int first, int second) {
-            this.first = first;
-            this.second = second;
-        }
-    }
-
     private static char SEPARATOR = ' ';
-    private static boolean CHECK_CRLF = System.lineSeparator().equals("\r\n");
+    private static char DIRECTIVE_START = '%';
+    private static String SKIP_DIRECTIVE = "skip";
+    private static String MODE_DIRECTIVE = "mode";
+    private static char MODES_START = '<', MODES_END = '>', MODES_SEPARATOR = ',', ACTION_START = ':';
+    private static String ALL_MODES = "*";
+
+    public static final String ERROR_TYPE = "ERROR";
+    public static final String INITIAL_MODE = "INITIAL";
+    public static final int DEFAULT_MAX_DFA_STATES = 10000;
+    /** Most lexemes of a concatenation in a rule scanned by the literal trie. */
+    public static final int MAX_CONCAT_LITERALS = 256;
 
     private boolean verbose;
+    private int maxDfaStates;
+    private boolean dropShadowedRules;
+    private int compileThreads;
+    private List<String> ruleWarnings;
     private List<String> tokenTypes;
     private List<Regex> regexes;
-    private List<DFA> automata;
-
-    private int id, row, col;
-    private Buffer buffer;
-    private List<List<Boolean>> inFinalStateCache;
-    private FileReader programFileReader;
-    private List<LexToken> tokens;
+    private List<Automaton> automata;
+    // the lexemes of each rule which only matches literals, null for the other rules
+    private List<List<String>> literals;
+    // the chars no rule tells apart, the automata run over their classes
+    private CharClasses charClasses;
+    private Set<String> skippedTypes;
+    private List<ModeAction> actions;
+
+    // modes are numbered in the order of declaration, INITIAL_MODE is 0
+    private List<String> modes;
+    private Map<String, Integer> modeIndices;
+    private List<List<Integer>> modeAutomata;
+    private List<BitSet> modeStartChars;
+    // the settings the runs start with
+    private final LexerSettings settings;
+    // the rules as compiled, and the diagnostics of the last run
+    private CompiledLexer compiled;
+    private Diagnostics diagnostics;
 
     public Lexer(String typeRegexPairsFilePath) {
         this(typeRegexPairsFilePath, true);
     }
 
     public Lexer(String typeRegexPairsFilePath, boolean verbose) {
+        this(typeRegexPairsFilePath, verbose, DEFAULT_MAX_DFA_STATES);
+    }
+
+    /**
+     * @param maxDfaStates the most states the dfa of a rule may have. Rules whose
+     * dfa would have more are scanned by a {@link PikeVM} over their nfa instead.
+     */
+    public Lexer(String typeRegexPairsFilePath, boolean verbose, int maxDfaStates) {
+        this(typeRegexPairsFilePath, verbose, maxDfaStates, false);
+    }
+
+    /**
+     * @param dropShadowedRules whether rules which can never win, as an earlier
+     * rule matches all their lexemes, are left out of scanning. They are reported
+     * by {@link #getRuleWarnings()} either way.
+     */
+    public Lexer(String typeRegexPairsFilePath, boolean verbose, int maxDfaStates, boolean dropShadowedRules) {
+        this(typeRegexPairsFilePath, verbose, maxDfaStates, dropShadowedRules, 1);
+    }
+
+    /**
+     * @param compileThreads the number of threads compiling the rules, 1 to
+     * compile them in sequence, 0 or less for one per available core. The
+     * automata are the same either way.
+     */
+    public Lexer(String typeRegexPairsFilePath, boolean verbose, int maxDfaStates, boolean dropShadowedRules,
+                 int compileThreads) {
         this.verbose = verbose;
+        this.maxDfaStates = maxDfaStates;
+        this.dropShadowedRules = dropShadowedRules;
+        this.compileThreads = (compileThreads > 0) ? compileThreads : Runtime.getRuntime().availableProcessors();
+        ruleWarnings = new ArrayList<>();
 
         tokenTypes = new ArrayList<>();
         regexes = new ArrayList<>();
         automata = new ArrayList<>();
-        
+        literals = new ArrayList<>();
+        skippedTypes = new TreeSet<>();
+        actions = new ArrayList<>();
+        modes = new ArrayList<>();
+        modeIndices = new TreeMap<>();
+        modeAutomata = new ArrayList<>();
+        modeStartChars = new ArrayList<>();
+        declareMode(INITIAL_MODE);
+        settings = new LexerSettings();
+        // a run which stops before tokenizing leaves no invalid matches behind
+        diagnostics = settings.newDiagnostics();
+
         init(typeRegexPairsFilePath);
     }
 
+    // all the rules are parsed before any is compiled, so the subtrees they share are known
     private void init(String typeRegexPairsFilePath) {
+        RegexTreeNodePool pool = new RegexTreeNodePool();
+        List<ParsedRule> rules = new ArrayList<>();
+
         try (BufferedReader br = new BufferedReader(new FileReader(typeRegexPairsFilePath))) {
             for (String line = br.readLine(); line != null; line = br.readLine()) {
                 if (line.isEmpty())
                     continue;
 
+                if (line.charAt(0) == DIRECTIVE_START) {
+                    handleDirective(line.substring(1));
+                    continue;
+                }
+
                 int splitAt = line.indexOf(SEPARATOR);
                 if (splitAt == -1)
                     throw new IllegalArgumentException("Line does not contain separator");
@@ -66,7 +154,7 @@ public class Lexer {
                 String 
                     type = line.substring(0, splitAt), 
                     regex = line.substring(splitAt + 1);
-                updateDefinitions(type, regex);
+                rules.add(parseRule(type, regex, pool));
             }
         }
         catch (FileNotFoundException e) {
@@ -77,187 +165,622 @@ public class Lexer {
             System.err.println("I/O Error");
             e.printStackTrace();
         }
+
+        compileRules(rules, pool);
+        freeze();
     }
 
-    private void updateDefinitions(String tokenType, String regex) {
-        Regex r = new Regex(regex);
-        RegexTree rt = new RegexTree(r);
-        NFA nfa = Thompson.convert(rt);
-        DFA dfa = SubsetConstruction.convert(nfa);
+    private void freeze() {
+        compiled = new CompiledLexer(tokenTypes, automata, literals, actions, skippedTypes, modes, modeAutomata,
+                                     modeStartChars);
+    }
 
-        if (verbose) {
-            showDetails(tokenType, r, rt, nfa, dfa);
-            System.out.println();
+    private void handleDirective(String directive) {
+        String[] parts = directive.trim().split("\\s+");
+
+        if (parts[0].equals(SKIP_DIRECTIVE)) {
+            for (int idx = 1; idx < parts.length; idx++)
+                skippedTypes.add(parts[idx]);
+        }
+        else if (parts[0].equals(MODE_DIRECTIVE)) {
+            for (int idx = 1; idx < parts.length; idx++)
+                declareMode(parts[idx]);
         }
+        else {
+            throw new IllegalArgumentException("Unknown directive: " + DIRECTIVE_START + parts[0]);
+        }
+    }
 
-        tokenTypes.add(tokenType);
-        regexes.add(r);
-        automata.add(dfa);
+    private void declareMode(String mode) {
+        if (modeIndices.containsKey(mode))
+            throw new IllegalArgumentException("Mode declared twice: " + mode);
+
+        modeIndices.put(mode, modes.size());
+        modes.add(mode);
+        modeAutomata.add(new ArrayList<>());
+        modeStartChars.add(new BitSet());
     }
 
-    private void showDetails(String tokenType, Regex r, RegexTree rt, NFA nfa, DFA dfa) {
-        System.out.println("Token Type: " + tokenType);
-        System.out.println("Regex: " + r.getNormalizedString());
-        System.out.println("Regex Tree:\n" + rt);
-        System.out.println("NFA:\n" + nfa);
-        System.out.println("DFA:\n" + dfa);
+    private int getModeIndex(String mode) {
+        Integer idx = modeIndices.get(mode);
+        if (idx == null)
+            throw new IllegalArgumentException("Undeclared mode: " + mode);
+        return idx;
     }
 
-    public List<LexToken> tokenize(String programFilePath) {
-        setup(programFilePath);
+    // Split "<MODE_1,MODE_2>TYPE:action" into its parts.
+    // Without a mode list the rule is only active in the initial mode.
+    private ParsedRule parseRule(String typeField, String regex, RegexTreeNodePool pool) {
+        List<Integer> ruleModes = new ArrayList<>();
+
+        if (typeField.charAt(0) == MODES_START) {
+            int end = typeField.indexOf(MODES_END);
+            if (end == -1)
+                throw new IllegalArgumentException("Mode list is not closed: " + typeField);
+
+            for (String mode : typeField.substring(1, end).split(String.valueOf(MODES_SEPARATOR))) {
+                if (mode.equals(ALL_MODES)) {
+                    for (int idx = 0; idx < modes.size(); idx++)
+                        ruleModes.add(idx);
+                }
+                else {
+                    ruleModes.add(getModeIndex(mode));
+                }
+            }
+            typeField = typeField.substring(end + 1);
+        }
+        else {
+            ruleModes.add(getModeIndex(INITIAL_MODE));
+        }
+
+        ModeAction action = ModeAction.NONE;
+        int actionAt = typeField.indexOf(ACTION_START);
+        if (actionAt != -1) {
+            action = parseAction(typeField.substring(actionAt + 1));
+            typeField = typeField.substring(0, actionAt);
+        }
+
+        Regex r = new Regex(regex);
+        RegexTree tree;
         try {
-            makeTokens();
-        } 
-        catch (IOException e) {
-            System.err.println("I/O Error while scanning program file");
-            e.printStackTrace();
+            tree = new RegexTree(r, pool);
+        }
+        catch (RegexSyntaxException e) {
+            throw new IllegalArgumentException("Invalid regex of " + typeField + ": " + e.getMessage(), e);
+        }
+        return new ParsedRule(typeField, r, tree, tree.getLiterals(MAX_CONCAT_LITERALS), ruleModes, action);
+    }
+
+    // one of "push(MODE)", "begin(MODE)" or "pop"
+    private ModeAction parseAction(String action) {
+        if (action.equals("pop"))
+            return new ModeAction(ModeAction.Kind.POP, -1);
+
+        int open = action.indexOf('(');
+        if (open == -1 || !action.endsWith(")"))
+            throw new IllegalArgumentException("Invalid action: " + action);
+
+        String name = action.substring(0, open), mode = action.substring(open + 1, action.length() - 1);
+        switch (name) {
+            case "push":    return new ModeAction(ModeAction.Kind.PUSH, getModeIndex(mode));
+            case "begin":   return new ModeAction(ModeAction.Kind.BEGIN, getModeIndex(mode));
+            default:        throw new IllegalArgumentException("Invalid action: " + action);
         }
-        List<LexToken> temp = new ArrayList<>(tokens);
-        cleanup();
-        return temp;
     }
 
-    private void makeTokens() throws IOException {
-        int ch;
+    private static class ParsedRule {
+        final String tokenType;
+        final Regex regex;
+        final RegexTree tree;
+        // null unless the rule only matches literals
+        final List<String> literals;
+        final List<Integer> modes;
+        final ModeAction action;
+
+        ParsedRule(String tokenType, Regex regex, RegexTree tree, List<String> literals, List<Integer> modes,
+                   ModeAction action) {
+            this.tokenType = tokenType;
+            this.regex = regex;
+            this.tree = tree;
+            this.literals = literals;
+            this.modes = modes;
+            this.action = action;
+        }
+    }
+
+    // literal rules are left out of the char classes, their trie runs over the chars themselves
+    private void compileRules(List<ParsedRule> rules, RegexTreeNodePool pool) {
+        List<BitSet> charSets = new ArrayList<>();
+        int literalRules = 0;
+        for (ParsedRule rule : rules) {
+            if (rule.literals == null)
+                charSets.addAll(rule.tree.getCharSets());
+            else
+                literalRules++;
+        }
+        charClasses = CharClasses.of(charSets);
+
+        NFAFragmentCache fragments = new NFAFragmentCache(pool);
+        List<CompiledRule> compiledRules = compileAll(rules, fragments);
+        for (int idx = 0; idx < rules.size(); idx++)
+            updateDefinitions(rules.get(idx), compiledRules.get(idx));
+        findShadowedRules(rules);
 
-        while ((ch = buffer.get()) != -1) {
-            advanceAutomata(ch); // advance those automata which are not in dead state
+        if (verbose) {
+            System.out.println("Char Classes:\n" + charClasses + "\n");
+            System.out.println(String.format("%d rules, %d of them literal, %d distinct regex nodes, %d shared NFA fragments reused %d times, %d char classes\n",
+                rules.size(), literalRules, pool.size(), fragments.size(), fragments.getHits(), charClasses.getNumberOfClasses()));
+        }
+    }
 
-            if (allAutomataInDeadState()) {
-                handlePossibleMatch();
+    // A rule is shadowed when, in each of its modes, an earlier rule matches every lexeme it matches:
+    // wherever it is in a final state, so is the earlier rule, which wins. Identical rules are the
+    // special case of an earlier rule matching exactly the same lexemes.
+    private void findShadowedRules(List<ParsedRule> rules) {
+        // by mode, the rules scanned by an automaton, and the literal rules of each literal, by priority
+        List<List<Integer>> automatonRules = new ArrayList<>();
+        List<Map<String, List<Integer>>> literalRules = new ArrayList<>();
+        for (List<Integer> automataOfMode : modeAutomata) {
+            List<Integer> ofMode = new ArrayList<>();
+            Map<String, List<Integer>> byLiteral = new HashMap<>();
+            for (int rule : automataOfMode) {
+                if (literals.get(rule) == null) {
+                    ofMode.add(rule);
+                    continue;
+                }
+                for (String literal : literals.get(rule))
+                    byLiteral.computeIfAbsent(literal, l -> new ArrayList<>()).add(rule);
+            }
+            automatonRules.add(ofMode);
+            literalRules.add(byLiteral);
+        }
 
-                resetAllAutomata();
-                resetFinalStatesCache();
+        for (int rule = 0; rule < rules.size(); rule++) {
+            List<String> ruleLiterals = literals.get(rule);
+            if (!(automata.get(rule) instanceof DFA) && (ruleLiterals == null || ruleLiterals.isEmpty()))
+                continue;
+
+            Set<Integer> shadowing = new TreeSet<>();
+            for (int mode : rules.get(rule).modes) {
+                int earlier = (ruleLiterals == null)
+                    ? findShadowingRule(rule, automatonRules.get(mode))
+                    : findShadowingRule(ruleLiterals, rule, automatonRules.get(mode), literalRules.get(mode));
+                if (earlier == -1) {
+                    shadowing.clear();
+                    break;
+                }
+                shadowing.add(earlier);
+            }
+            if (shadowing.isEmpty())
+                continue;
+
+            StringBuilder warning = new StringBuilder("Rule " + describeRule(rule));
+            for (int earlier : shadowing) {
+                boolean identical = isIdentical(rule, earlier);
+                warning.append(identical ? " is identical to " : " is shadowed by ").append(describeRule(earlier));
+                warning.append(',');
             }
-            else {
-                updateFinalStatesCache();
+            warning.setLength(warning.length() - 1);
+
+            if (dropShadowedRules) {
+                for (int mode = 0; mode < modes.size(); mode++) {
+                    modeAutomata.get(mode).remove(Integer.valueOf(rule));
+                    automatonRules.get(mode).remove(Integer.valueOf(rule));
+                    for (String literal : (ruleLiterals == null) ? Collections.<String>emptyList() : ruleLiterals) {
+                        List<Integer> ofLiteral = literalRules.get(mode).get(literal);
+                        if (ofLiteral != null)
+                            ofLiteral.remove(Integer.valueOf(rule));
+                    }
+                }
+                warning.append(", it is dropped");
             }
+
+            ruleWarnings.add(warning.toString());
+            if (verbose)
+                System.out.println(warning + "\n");
+        }
+    }
+
+    // the first earlier rule of the mode matching every lexeme the rule matches, -1 if none
+    private int findShadowingRule(int rule, List<Integer> automatonRules) {
+        DFA dfa = (DFA) automata.get(rule);
+
+        for (int earlier : automatonRules) {
+            if (earlier >= rule)
+                break;
+            if (!(automata.get(earlier) instanceof DFA))
+                continue;
+
+            // a lexeme starting with a char the earlier rule cannot start with is not matched by it
+            DFA earlierDfa = (DFA) automata.get(earlier);
+            if (earlierDfa.getStartSymbols().containsAll(dfa.getStartSymbols()) && dfa.isSubsetOf(earlierDfa))
+                return earlier;
         }
 
-        // we may have an outstanding match/non-match
-        if (buffer.size() != 0)
-            handlePossibleMatch();
+        return -1;
     }
 
-    private void setup(String programFilePath) {
-        inFinalStateCache = new ArrayList<>();
-        id = 0; row = col = 1;
-        tokens = new ArrayList<>();
-        try {
-            programFileReader = new FileReader(programFilePath);
+    // an earlier literal rule shadowing a literal one has its first literal, so only those are
+    // looked at, while an earlier dfa must accept all its literals
+    private int findShadowingRule(List<String> ruleLiterals, int rule, List<Integer> automatonRules,
+                                  Map<String, List<Integer>> literalRules) {
+        int shadowing = -1;
+        for (int earlier : literalRules.get(ruleLiterals.get(0))) {
+            if (earlier >= rule)
+                break;
+            if (new HashSet<>(literals.get(earlier)).containsAll(ruleLiterals)) {
+                shadowing = earlier;
+                break;
+            }
         }
-        catch (FileNotFoundException e) {
-            System.err.println("Program file not found");
-            e.printStackTrace();
+
+        for (int earlier : automatonRules) {
+            if (earlier >= rule || (shadowing != -1 && earlier > shadowing))
+                break;
+            if (automata.get(earlier) instanceof DFA && acceptsAll((DFA) automata.get(earlier), ruleLiterals))
+                return earlier;
         }
-        buffer = new Buffer(programFileReader);
+
+        return shadowing;
+    }
+
+    private static boolean acceptsAll(DFA dfa, List<String> lexemes) {
+        Set<Integer> finalStates = dfa.getFinalStates();
+        for (String lexeme : lexemes) {
+            int state = dfa.getStartState();
+            for (int idx = 0; idx < lexeme.length() && state != DFA.DEAD_STATE; idx++)
+                state = dfa.getNextState(state, lexeme.charAt(idx));
+            if (!finalStates.contains(state))
+                return false;
+        }
+        return true;
     }
 
-    private void cleanup() {
-        inFinalStateCache = null;
-        id = row = col = -1;
-        tokens = null;
-        buffer = null;
+    // a literal rule and a regex one are never told to be identical, only that one shadows the other
+    private boolean isIdentical(int rule, int earlier) {
+        List<String> ruleLiterals = literals.get(rule), earlierLiterals = literals.get(earlier);
+        if (ruleLiterals != null || earlierLiterals != null)
+            return ruleLiterals != null && earlierLiterals != null && earlierLiterals.size() == ruleLiterals.size();
+        return ((DFA) automata.get(rule)).isEquivalent((DFA) automata.get(earlier));
+    }
+
+    private String describeRule(int rule) {
+        return String.format("%d %s (%s)", rule, tokenTypes.get(rule), regexes.get(rule).getRawString());
+    }
+
+    private static class CompiledRule {
+        final NFA nfa;
+        final Automaton automaton;
+
+        CompiledRule(NFA nfa, Automaton automaton) {
+            this.nfa = nfa;
+            this.automaton = automaton;
+        }
+    }
+
+    // Rules do not depend on each other until they are added, so they may be compiled on several
+    // threads. The results are added in the order of the definitions either way.
+    private List<CompiledRule> compileAll(List<ParsedRule> rules, NFAFragmentCache fragments) {
+        List<CompiledRule> compiledRules = new ArrayList<>();
+        if (compileThreads == 1 || rules.size() < 2) {
+            for (ParsedRule rule : rules)
+                compiledRules.add(compileRule(rule, fragments));
+            return compiledRules;
+        }
+
+        List<Callable<CompiledRule>> tasks = new ArrayList<>();
+        for (ParsedRule rule : rules)
+            tasks.add(() -> compileRule(rule, fragments));
+
+        ForkJoinPool workers = new ForkJoinPool(compileThreads);
         try {
-            programFileReader.close();
+            for (Future<CompiledRule> result : workers.invokeAll(tasks))
+                compiledRules.add(result.get());
         }
-        catch (IOException e) {
-            System.err.println("I/O Error while closing program file");
-            e.printStackTrace();
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while compiling rules", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Could not compile rules", e.getCause());
         }
+        finally {
+            workers.shutdown();
+        }
+        return compiledRules;
+    }
+
+    // only reads the rule, the char classes and the cache, so it is safe on any thread;
+    // literal rules have no nfa, their trie is built once the rule has its index
+    private CompiledRule compileRule(ParsedRule rule, NFAFragmentCache fragments) {
+        if (rule.literals != null)
+            return null;
+
+        NFA nfa = Thompson.convert(rule.tree, fragments, charClasses);
+
+        // a rule whose dfa explodes is scanned in time linear in its nfa instead
+        DFA dfa = SubsetConstruction.convert(nfa, maxDfaStates);
+        if (dfa == null)
+            return new CompiledRule(nfa, new PikeVM(nfa, charClasses));
+
+        dfa.setCharClasses(charClasses);
+        dfa.computeAccelerableStates();
+        return new CompiledRule(nfa, dfa);
     }
 
-    private void handlePossibleMatch() {
-        PairOfInts cacheAndAutomataIndices = getCacheAndAutomataIndicesOfMatch();
-        if (cacheAndAutomataIndices != null) {
-            handleMatch(cacheAndAutomataIndices);
+    private void updateDefinitions(ParsedRule rule, CompiledRule compiledRule) {
+        int automatonIdx = automata.size();
+        Automaton automaton = (rule.literals == null) ? compiledRule.automaton : new LiteralTrie(rule.literals, automatonIdx);
+
+        if (verbose) {
+            showDetails(rule.tokenType, rule.regex, rule.tree, (compiledRule == null) ? null : compiledRule.nfa, automaton);
+            System.out.println();
         }
-        else {
-            String invalid = buffer.consume(inFinalStateCache.size() + 1);
-            System.err.println(
-                String.format("Invalid match @ row %d col %d: %s", 
-                                row, col, StringEscapeUtils.escape(invalid))
-            );
-            updateRowCol(invalid);
+
+        tokenTypes.add(rule.tokenType);
+        regexes.add(rule.regex);
+        automata.add(automaton);
+        literals.add(rule.literals);
+        actions.add(rule.action);
+
+        for (int mode : rule.modes) {
+            modeAutomata.get(mode).add(automatonIdx);
+            for (char ch : automaton.getStartSymbols())
+                modeStartChars.get(mode).set(ch);
+        }
+    }
+
+    private void showDetails(String tokenType, Regex r, RegexTree rt, NFA nfa, Automaton automaton) {
+        System.out.println("Token Type: " + tokenType);
+        System.out.println("Regex: " + r.getNormalizedString());
+        System.out.println("Regex Tree:\n" + rt);
+        if (automaton instanceof LiteralTrie) {
+            System.out.println("Literal Trie (scanned with the other literal rules of its modes):\n" + automaton);
+            return;
         }
-        buffer.reset();
+
+        System.out.println("NFA (over char classes):\n" + nfa);
+        if (automaton instanceof DFA)
+            System.out.println("DFA:\n" + automaton);
+        else
+            System.out.println("Pike VM (DFA exceeds " + maxDfaStates + " states):\n" + automaton);
     }
 
-    private void handleMatch(PairOfInts cacheAndAutomataIndices) {
-        String 
-            lexeme = buffer.consume(cacheAndAutomataIndices.first + 1),
-            type = tokenTypes.get(cacheAndAutomataIndices.second);
+    public Set<String> getTokenTypes() {
+        return new TreeSet<>(tokenTypes);
+    }
 
-        // System.out.println(String.format("%d %d %d %s %s", id, row, col, type, StringEscapeUtils.escape(lexeme)));
-        
-        tokens.add(new LexToken(id++, row, col, type, lexeme));
-        updateRowCol(lexeme);
+    public Set<String> getSkippedTypes() {
+        return new TreeSet<>(skippedTypes);
     }
 
-    private void updateRowCol(String str) {
-        for (int idx = 0; idx < str.length(); ) {
-            char ch = str.charAt(idx);
+    public List<String> getModes() {
+        return new ArrayList<>(modes);
+    }
 
-            if (CHECK_CRLF && ch == '\r') {
-                if (idx < str.length() - 1) {
-                    char next = str.charAt(idx + 1);
-                    if (next == '\n') {
-                        ch = next;
-                        idx++;
-                    }
-                }
-            }
-            
-            if (ch == '\n' || ch == '\r') {
-                row++;
-                col = 1;
+    /**
+     * @return A line for each rule which can never win, as an earlier rule
+     * matches every lexeme it matches.
+     */
+    public List<String> getRuleWarnings() {
+        return new ArrayList<>(ruleWarnings);
+    }
+
+    // the rules themselves, for the tools of this package which run the automata on their own
+
+    int getNumberOfRules() {
+        return automata.size();
+    }
+
+    String getTokenType(int rule) {
+        return tokenTypes.get(rule);
+    }
+
+    Regex getRegex(int rule) {
+        return regexes.get(rule);
+    }
+
+    Automaton getAutomaton(int rule) {
+        return automata.get(rule);
+    }
+
+    ModeAction getAction(int rule) {
+        return actions.get(rule);
+    }
+
+    /**
+     * @return The rules active in {@code mode}, by priority.
+     */
+    int[] getRules(String mode) {
+        List<Integer> rules = modeAutomata.get(getModeIndex(mode));
+        int[] result = new int[rules.size()];
+        for (int idx = 0; idx < result.length; idx++)
+            result[idx] = rules.get(idx);
+        return result;
+    }
+
+    /**
+     * Start or stop recording the visits of the states and transitions of
+     * every automaton. Enabling starts from zero counts.
+     */
+    public void setProfiling(boolean profiling) {
+        for (Automaton automaton : automata) {
+            if (automaton instanceof DFA) {
+                DFA dfa = (DFA) automaton;
+                dfa.setProfile(profiling ? new DFAProfile(dfa.getNumberOfStates()) : null);
             }
-            else {
-                col++;
+        }
+    }
+
+    /**
+     * @return The counts recorded since profiling was enabled, or {@code null} if it is not.
+     */
+    public LexerProfile getProfile() {
+        List<DFAProfile> profiles = new ArrayList<>();
+        for (Automaton automaton : automata) {
+            // rules scanned by a pike vm have no dfa states to count
+            if (!(automaton instanceof DFA)) {
+                profiles.add(new DFAProfile(0));
+                continue;
             }
-            idx++;
+
+            DFA dfa = (DFA) automaton;
+            if (dfa.getProfile() == null)
+                return null;
+            profiles.add(dfa.getProfile());
         }
+        return new LexerProfile(tokenTypes, profiles);
     }
 
-    private void advanceAutomata(int ch) {
-        if (ch < 0)
-            throw new IllegalArgumentException("Trying to advance automata on invalid symbol");
-        
-        char c = (char) ch;
-        for (DFA dfa : automata)
-            if (!dfa.isInDeadState())
-                dfa.advance(c);
+    /**
+     * Renumber the states of each automaton so the most visited ones come first
+     * in its transition table. Rules the profile does not match are left alone.
+     *
+     * @return The number of automata which were laid out again.
+     */
+    public int layoutStates(LexerProfile profile) {
+        int laidOut = 0;
+
+        for (int rule = 0; rule < Math.min(automata.size(), profile.getNumberOfRules()); rule++) {
+            if (!(automata.get(rule) instanceof DFA))
+                continue;
+
+            DFA dfa = (DFA) automata.get(rule);
+            DFAProfile dfaProfile = profile.getProfile(rule);
+            if (!profile.getTokenType(rule).equals(tokenTypes.get(rule))
+                    || dfaProfile.getNumberOfStates() != dfa.getNumberOfStates())
+                continue;
+
+            DFA laidOutDfa = dfa.reorderStates(dfaProfile.getStatesByVisits());
+            laidOutDfa.computeAccelerableStates();
+            automata.set(rule, laidOutDfa);
+            laidOut++;
+        }
+        if (laidOut != 0)
+            freeze();
+
+        return laidOut;
     }
 
-    private void resetAllAutomata() {
-        for (DFA dfa : automata)
-            dfa.reset();
+    /**
+     * @return The settings of the runs of the lexer, changed in place. Each
+     * run gets a copy of them as they are when it starts.
+     */
+    public LexerSettings getSettings() {
+        return settings;
     }
 
-    private boolean allAutomataInDeadState() {
-        for (DFA dfa : automata)
-            if (!dfa.isInDeadState())
-                return false;
-        return true;
+    /**
+     * @return The diagnostics of the last call to {@code tokenize}.
+     */
+    public Diagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * @return The rules as they are compiled now, to be shared by threads
+     * tokenizing at once, each with a session of its own. Laying out the
+     * states again makes a new one, the one returned never changes.
+     */
+    public CompiledLexer getCompiledLexer() {
+        return compiled;
+    }
+
+    // a session over the automata of the lexer itself, which record profiles, with its settings
+    private LexerSession startSession() {
+        return new LexerSession(compiled, automata.toArray(new Automaton[0]), new LexerSettings(settings));
+    }
+
+    public List<LexToken> tokenize(String programFilePath) {
+        return tokenize(programFilePath, null);
+    }
+
+    /**
+     * @see LexerSession#tokenize(String, Set)
+     */
+    public List<LexToken> tokenize(String programFilePath, Set<String> wantedTypes) {
+        LexerSession session = startSession();
+        try {
+            return session.tokenize(programFilePath, wantedTypes);
+        }
+        finally {
+            diagnostics = session.getDiagnostics();
+        }
+    }
+
+    /**
+     * @see LexerSession#tokenize(String, Set, Consumer)
+     */
+    public void tokenize(String programFilePath, Set<String> wantedTypes, Consumer<LexToken> sink) {
+        tokenize(programFilePath, wantedTypes, sink, null);
+    }
+
+    /**
+     * @see LexerSession#tokenize(String, Set, Consumer, LexerCheckpoint)
+     */
+    public void tokenize(String programFilePath, Set<String> wantedTypes, Consumer<LexToken> sink, LexerCheckpoint from) {
+        LexerSession session = startSession();
+        try {
+            session.tokenize(programFilePath, wantedTypes, sink, from);
+        }
+        finally {
+            diagnostics = session.getDiagnostics();
+        }
+    }
+
+    /**
+     * @see LexerSession#tokenize(Reader, Set, Consumer)
+     */
+    public void tokenize(Reader programReader, Set<String> wantedTypes, Consumer<LexToken> sink) {
+        tokenize(programReader, wantedTypes, sink, null);
     }
 
-    private void updateFinalStatesCache() {
-        List<Boolean> temp = new ArrayList<>(automata.size());
-        for (int idx = 0; idx < automata.size(); idx++)
-            temp.add(automata.get(idx).isInFinalState());
-        inFinalStateCache.add(temp);
+    /**
+     * @see LexerSession#tokenize(Reader, Set, Consumer, LexerCheckpoint)
+     */
+    public void tokenize(Reader programReader, Set<String> wantedTypes, Consumer<LexToken> sink, LexerCheckpoint from) {
+        LexerSession session = startSession();
+        try {
+            session.tokenize(programReader, wantedTypes, sink, from);
+        }
+        finally {
+            diagnostics = session.getDiagnostics();
+        }
     }
 
-    private void resetFinalStatesCache() {
-        inFinalStateCache = new ArrayList<>();
+    /**
+     * @see LexerSession#count(String)
+     */
+    public TokenStats count(String programFilePath) {
+        LexerSession session = startSession();
+        try {
+            return session.count(programFilePath);
+        }
+        finally {
+            diagnostics = session.getDiagnostics();
+        }
+    }
+
+    /**
+     * @see LexerSession#count(Reader)
+     */
+    public TokenStats count(Reader programReader) {
+        LexerSession session = startSession();
+        try {
+            return session.count(programReader);
+        }
+        finally {
+            diagnostics = session.getDiagnostics();
+        }
     }
 
-    private PairOfInts getCacheAndAutomataIndicesOfMatch() {
-        for (int cacheIdx = inFinalStateCache.size() - 1; cacheIdx >= 0; cacheIdx--)
-            for (int autoIdx = 0; autoIdx < automata.size(); autoIdx++)
-                if (inFinalStateCache.get(cacheIdx).get(autoIdx))
-                    return new PairOfInts(cacheIdx, autoIdx);
-        return null;
+    /**
+     * A missing file leaves empty diagnostics behind, not the ones of the last run.
+     */
+    void clearDiagnostics() {
+        diagnostics = settings.newDiagnostics();
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,200 @@
+package lexer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The state of the lexer between two tokens, from which tokenizing can be
+ * resumed, stored next to the output file in a text file.
+ *
+ * <pre>
+ * offset &lt;offset of the next char to scan&gt;
+ * id &lt;id of the next token&gt;
+ * line &lt;row of the line of the offset&gt; &lt;offset at which the line starts&gt;
+ * modes &lt;mode stack, bottom first&gt;
+ * errors &lt;invalid matches&gt; &lt;invalid chars&gt;
+ * output &lt;length of the output holding the tokens before the offset&gt;
+ * </pre>
+ */
+public class LexerCheckpoint {
+    public static final String EXTENSION = ".checkpoint";
+
+    private final long offset;
+    private final long id, row;
+    private final long lineStart;
+    private final List<String> modes;
+    private final int errorCount;
+    private final long invalidCharCount;
+    private final long outputPosition;
+
+    public LexerCheckpoint(long offset, long id, long row, long lineStart, List<String> modes,
+                           int errorCount, long invalidCharCount, long outputPosition) {
+        if (modes.isEmpty())
+            throw new IllegalArgumentException("Mode stack must not be empty");
+
+        this.offset = offset;
+        this.id = id;
+        this.row = row;
+        this.lineStart = lineStart;
+        this.modes = Collections.unmodifiableList(new ArrayList<>(modes));
+        this.errorCount = errorCount;
+        this.invalidCharCount = invalidCharCount;
+        this.outputPosition = outputPosition;
+    }
+
+    public static String getPath(String outputPath) {
+        return outputPath + EXTENSION;
+    }
+
+    /**
+     * @return The same checkpoint, with the output written up to {@code outputPosition}.
+     */
+    public LexerCheckpoint withOutputPosition(long outputPosition) {
+        return new LexerCheckpoint(offset, id, row, lineStart, modes, errorCount, invalidCharCount, outputPosition);
+    }
+
+    /**
+     * @return The offset in the input of the first char after the checkpoint.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getRow() {
+        return row;
+    }
+
+    public long getLineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return The mode stack, the current mode last.
+     */
+    public List<String> getModes() {
+        return modes;
+    }
+
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    public long getInvalidCharCount() {
+        return invalidCharCount;
+    }
+
+    /**
+     * @return The length of the output holding the tokens before the checkpoint, -1 if unknown.
+     */
+    public long getOutputPosition() {
+        return outputPosition;
+    }
+
+    /**
+     * Write the checkpoint, replacing the file at once, so it always holds
+     * either the previous or this checkpoint, even if the process dies.
+     */
+    public void write(String path) throws IOException {
+        File file = new File(path), temp = new File(path + ".tmp");
+
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out));
+            bw.write("offset " + offset);
+            bw.newLine();
+            bw.write("id " + id);
+            bw.newLine();
+            bw.write("line " + row + " " + lineStart);
+            bw.newLine();
+            bw.write("modes " + String.join(" ", modes));
+            bw.newLine();
+            bw.write("errors " + errorCount + " " + invalidCharCount);
+            bw.newLine();
+            bw.write("output " + outputPosition);
+            bw.newLine();
+            bw.flush();
+            out.getFD().sync();
+        }
+
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public static LexerCheckpoint read(String path) throws IOException {
+        long offset = -1, id = -1, row = 1, lineStart = 0, invalidCharCount = 0, outputPosition = -1;
+        int errorCount = 0;
+        List<String> modes = null;
+
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                if (line.isEmpty())
+                    continue;
+
+                String[] parts = line.split(" ");
+                try {
+                    switch (parts[0]) {
+                        case "offset":
+                            offset = Long.parseLong(parts[1]);
+                            break;
+
+                        case "id":
+                            id = Long.parseLong(parts[1]);
+                            break;
+
+                        case "line":
+                            row = Long.parseLong(parts[1]);
+                            lineStart = Long.parseLong(parts[2]);
+                            break;
+
+                        case "modes":
+                            modes = Arrays.asList(parts).subList(1, parts.length);
+                            break;
+
+                        case "errors":
+                            errorCount = Integer.parseInt(parts[1]);
+                            invalidCharCount = Long.parseLong(parts[2]);
+                            break;
+
+                        case "output":
+                            outputPosition = Long.parseLong(parts[1]);
+                            break;
+
+                        default:
+                            throw new IOException("Invalid line in checkpoint: " + line);
+                    }
+                }
+                catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    throw new IOException("Invalid line in checkpoint: " + line, e);
+                }
+            }
+        }
+
+        if (offset < 0 || id < 0 || modes == null || modes.isEmpty())
+            throw new IOException("Incomplete checkpoint: " + path);
+        return new LexerCheckpoint(offset, id, row, lineStart, modes, errorCount, invalidCharCount, outputPosition);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("offset %d, token %d, row %d, modes %s", offset, id, row, modes);
+    }
+}
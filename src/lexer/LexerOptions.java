@@ -0,0 +1,220 @@
+package lexer;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import utils.SymbolTable;
+
+/**
+ * Command line arguments of the lexer, shared by {@code Main} and the lexer
+ * client so both accept exactly the same arguments.
+ */
+public class LexerOptions {
+    private boolean verbose, errorTokens, profile, profileReport, profileLayout, pipelined, dropShadowed, resume, follow,
+                    count, binary, binaryLexemes;
+    private int maxErrors, maxDfaStates, compileThreads;
+    private long checkpointInterval;
+    private Charset charset;
+    private Set<String> internedTypes;
+    private List<String> positional, flags;
+
+    private LexerOptions() {
+        maxErrors = Diagnostics.DEFAULT_MAX_ERRORS;
+        maxDfaStates = Lexer.DEFAULT_MAX_DFA_STATES;
+        compileThreads = 1;
+        charset = Charset.defaultCharset();
+        internedTypes = new TreeSet<>();
+        positional = new ArrayList<>();
+        flags = new ArrayList<>();
+    }
+
+    /**
+     * Flags may appear anywhere among the positional arguments.
+     *
+     * @param args the command line arguments.
+     * @return The parsed options.
+     * @throws IllegalArgumentException if a flag is missing its value or it is invalid.
+     */
+    public static LexerOptions parse(String[] args) {
+        LexerOptions options = new LexerOptions();
+
+        try {
+            for (int idx = 0; idx < args.length; idx++) {
+                int flagStart = idx;
+                switch (args[idx]) {
+                    case "-v":              options.verbose = true; break;
+                    case "-error-tokens":   options.errorTokens = true; break;
+                    case "-max-errors":     options.maxErrors = Integer.parseInt(args[++idx]); break;
+                    case "-profile":        options.profile = true; break;
+                    case "-profile-report": options.profileReport = true; break;
+                    case "-profile-layout": options.profileLayout = true; break;
+                    case "-pipelined":      options.pipelined = true; break;
+                    case "-max-dfa-states": options.maxDfaStates = Integer.parseInt(args[++idx]); break;
+                    case "-drop-shadowed":  options.dropShadowed = true; break;
+                    case "-compile-threads": options.compileThreads = Integer.parseInt(args[++idx]); break;
+                    case "-charset":        options.charset = Charset.forName(args[++idx]); break;
+                    case "-checkpoint":     options.checkpointInterval = Long.parseLong(args[++idx]); break;
+                    case "-resume":         options.resume = true; break;
+                    case "-follow":         options.follow = true; break;
+                    case "-intern":         options.internedTypes.addAll(Arrays.asList(args[++idx].split(","))); break;
+                    case "-count":          options.count = true; break;
+                    case "-binary":         options.binary = options.binaryLexemes = true; break;
+                    case "-binary-refs":    options.binary = true; options.binaryLexemes = false; break;
+                    default:                options.positional.add(args[idx]); continue;
+                }
+                for (int flagIdx = flagStart; flagIdx <= idx; flagIdx++)
+                    options.flags.add(args[flagIdx]);
+            }
+        }
+        catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid value for flag", e);
+        }
+
+        return options;
+    }
+
+    public static List<String> getFlagsUsage() {
+        List<String> usage = new ArrayList<>();
+        usage.add("-v: Verbose flag. If enabled, dump all details of intermediate steps.");
+        usage.add("-max-errors: Number of invalid matches reported in detail, the rest are only counted.");
+        usage.add("-error-tokens: List invalid matches among the tokens, with type " + Lexer.ERROR_TYPE + ".");
+        usage.add("-profile: Count state and transition visits, adding them to the profile next to the regex file.");
+        usage.add("-profile-report: Print the hottest states and transitions of the profile.");
+        usage.add("-profile-layout: Lay out the states of the automata by the profile next to the regex file.");
+        usage.add("-max-dfa-states: Most states of the DFA of a rule, larger rules are scanned by simulating their NFA.");
+        usage.add("-drop-shadowed: Leave out the rules which can never win over an earlier rule, they are always reported.");
+        usage.add("-compile-threads: Threads compiling the rules, 0 for one per core. The rules are the same, only built sooner.");
+        usage.add("-charset: Charset of the program file, the platform default if not given. US-ASCII and ISO-8859-1 are read without decoding.");
+        usage.add("-checkpoint: Save a checkpoint next to the output file every n chars of input, it is removed once done.");
+        usage.add("-resume: Continue from the checkpoint next to the output file, appending to it. Starts over if there is none.");
+        usage.add("-follow: Keep tokenizing what is appended to the program file, following truncation and rotation, until killed.");
+        usage.add("-intern: Comma separated token types whose lexemes are interned, each distinct lexeme is built once.");
+        usage.add("-count: Print the tokens and chars of each type, the lines and the invalid matches, instead of the tokens.");
+        usage.add("-binary: Write the tokens to the output file in the binary token format, with their lexemes.");
+        usage.add("-binary-refs: Like -binary, leaving out the lexemes, which are referred to by offset and length. Not with -error-tokens.");
+        usage.add("-pipelined: Read, decode, scan and output on separate threads, printing tokens as they are found.");
+        return usage;
+    }
+
+    /**
+     * Apply the options which are settings of the lexer, to those of a
+     * {@link Lexer} or a {@link LexerSession}.
+     */
+    public void configure(LexerSettings settings) {
+        settings.setErrorLimits(maxErrors, Diagnostics.DEFAULT_MAX_SNIPPET_LENGTH);
+        settings.setEmitErrorTokens(errorTokens);
+        settings.setCharset(charset);
+        settings.setSymbolTable(internedTypes.isEmpty() ? null : new SymbolTable(), internedTypes);
+    }
+
+    /**
+     * @return The token types to print: all the types which are not skipped,
+     * except {@code WHITESPACE}.
+     */
+    public Set<String> getWantedTypes(Lexer lexer) {
+        return getWantedTypes(lexer.getCompiledLexer());
+    }
+
+    public Set<String> getWantedTypes(CompiledLexer lexer) {
+        Set<String> wantedTypes = lexer.getTokenTypes();
+        wantedTypes.removeAll(lexer.getSkippedTypes());
+        wantedTypes.remove("WHITESPACE");
+        return wantedTypes;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public boolean isErrorTokens() {
+        return errorTokens;
+    }
+
+    public boolean isProfile() {
+        return profile;
+    }
+
+    public boolean isProfileReport() {
+        return profileReport;
+    }
+
+    public boolean isProfileLayout() {
+        return profileLayout;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    public boolean isDropShadowed() {
+        return dropShadowed;
+    }
+
+    public int getMaxDfaStates() {
+        return maxDfaStates;
+    }
+
+    /**
+     * @return The number of threads compiling the rules, 0 for one per core.
+     */
+    public int getCompileThreads() {
+        return compileThreads;
+    }
+
+    /**
+     * @return The chars of input between two checkpoints, 0 if no checkpoints are saved.
+     */
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public boolean isFollow() {
+        return follow;
+    }
+
+    public boolean isCount() {
+        return count;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return Whether the binary tokens hold their lexemes, rather than refer to the program file.
+     */
+    public boolean isBinaryLexemes() {
+        return binaryLexemes;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public Set<String> getInternedTypes() {
+        return new TreeSet<>(internedTypes);
+    }
+
+    public List<String> getPositional() {
+        return new ArrayList<>(positional);
+    }
+
+    /**
+     * @return The flags with their values, as they were given.
+     */
+    public List<String> getFlags() {
+        return new ArrayList<>(flags);
+    }
+}
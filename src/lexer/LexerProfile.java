@@ -0,0 +1,187 @@
+package lexer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import automata.DFAProfile;
+import utils.StringEscapeUtils;
+
+/**
+ * The visit counts of the automata of all the rules of a definitions file,
+ * stored next to it in a text file.
+ *
+ * <pre>
+ * rule &lt;rule index&gt; &lt;token type&gt; &lt;number of states&gt;
+ * state &lt;state&gt; &lt;visits&gt;
+ * transition &lt;from&gt; &lt;symbol code&gt; &lt;visits&gt;
+ * </pre>
+ */
+public class LexerProfile {
+    public static final String EXTENSION = ".profile";
+
+    private static final int REPORT_STATES = 5, REPORT_TRANSITIONS = 3;
+
+    private final List<String> tokenTypes;
+    private final List<DFAProfile> profiles;
+
+    public LexerProfile(List<String> tokenTypes, List<DFAProfile> profiles) {
+        if (tokenTypes.size() != profiles.size())
+            throw new IllegalArgumentException("One profile is needed per rule");
+
+        this.tokenTypes = new ArrayList<>(tokenTypes);
+        this.profiles = new ArrayList<>(profiles);
+    }
+
+    public static String getPath(String definitionsPath) {
+        return definitionsPath + EXTENSION;
+    }
+
+    public int getNumberOfRules() {
+        return profiles.size();
+    }
+
+    public String getTokenType(int rule) {
+        return tokenTypes.get(rule);
+    }
+
+    public DFAProfile getProfile(int rule) {
+        return profiles.get(rule);
+    }
+
+    /**
+     * Add the counts of {@code other} to this profile, if both are for the same rules.
+     *
+     * @return Whether the profiles could be merged.
+     */
+    public boolean merge(LexerProfile other) {
+        if (!tokenTypes.equals(other.tokenTypes))
+            return false;
+        for (int rule = 0; rule < profiles.size(); rule++)
+            if (profiles.get(rule).getNumberOfStates() != other.profiles.get(rule).getNumberOfStates())
+                return false;
+
+        for (int rule = 0; rule < profiles.size(); rule++)
+            profiles.get(rule).merge(other.profiles.get(rule));
+        return true;
+    }
+
+    public static LexerProfile read(String path) throws IOException {
+        List<String> tokenTypes = new ArrayList<>();
+        List<DFAProfile> profiles = new ArrayList<>();
+
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            DFAProfile current = null;
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                if (line.isEmpty())
+                    continue;
+
+                String[] parts = line.split(" ");
+                try {
+                    switch (parts[0]) {
+                        case "rule":
+                            if (Integer.parseInt(parts[1]) != profiles.size())
+                                throw new IOException("Rules out of order in profile: " + line);
+                            tokenTypes.add(parts[2]);
+                            profiles.add(current = new DFAProfile(Integer.parseInt(parts[3])));
+                            break;
+
+                        case "state":
+                            current.recordStateVisits(Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+                            break;
+
+                        case "transition":
+                            current.recordTransitionVisits(
+                                Integer.parseInt(parts[1]), (char) Integer.parseInt(parts[2]), Long.parseLong(parts[3]));
+                            break;
+
+                        default:
+                            throw new IOException("Invalid line in profile: " + line);
+                    }
+                }
+                catch (NumberFormatException | IndexOutOfBoundsException | NullPointerException e) {
+                    throw new IOException("Invalid line in profile: " + line, e);
+                }
+            }
+        }
+
+        return new LexerProfile(tokenTypes, profiles);
+    }
+
+    /**
+     * Write the profile, replacing the file only once it is complete.
+     */
+    public void write(String path) throws IOException {
+        File file = new File(path), temp = new File(path + ".tmp");
+
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(temp))) {
+            for (int rule = 0; rule < profiles.size(); rule++) {
+                DFAProfile profile = profiles.get(rule);
+                bw.write(String.format("rule %d %s %d", rule, tokenTypes.get(rule), profile.getNumberOfStates()));
+                bw.newLine();
+
+                for (int state = 0; state < profile.getNumberOfStates(); state++) {
+                    if (profile.getStateVisits(state) == 0)
+                        continue;
+                    bw.write(String.format("state %d %d", state, profile.getStateVisits(state)));
+                    bw.newLine();
+                    for (Map.Entry<Character, Long> e : profile.getTransitionVisits(state).entrySet()) {
+                        bw.write(String.format("transition %d %d %d", state, (int) e.getKey(), e.getValue()));
+                        bw.newLine();
+                    }
+                }
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return For every rule, its hottest states and their hottest transitions.
+     */
+    public String getReport() {
+        long total = 0;
+        for (DFAProfile profile : profiles)
+            total += profile.getTotalVisits();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Total state visits: %d\n", total));
+
+        for (int rule = 0; rule < profiles.size(); rule++) {
+            DFAProfile profile = profiles.get(rule);
+            long ruleTotal = profile.getTotalVisits();
+            sb.append(String.format("Rule %d %s: %d visits (%.1f%%), %d states\n",
+                rule, tokenTypes.get(rule), ruleTotal, percent(ruleTotal, total), profile.getNumberOfStates()));
+
+            int[] hot = profile.getStatesByVisits();
+            for (int idx = 0; idx < Math.min(REPORT_STATES, hot.length); idx++) {
+                long visits = profile.getStateVisits(hot[idx]);
+                if (visits == 0)
+                    break;
+                sb.append(String.format("    state %5d %12d (%.1f%%)", hot[idx], visits, percent(visits, ruleTotal)));
+
+                List<Map.Entry<Character, Long>> transitions = new ArrayList<>(profile.getTransitionVisits(hot[idx]).entrySet());
+                transitions.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+                for (int t = 0; t < Math.min(REPORT_TRANSITIONS, transitions.size()); t++)
+                    sb.append(String.format("  '%s' %d",
+                        StringEscapeUtils.getRepresentation(transitions.get(t).getKey()), transitions.get(t).getValue()));
+                sb.append('\n');
+            }
+        }
+        sb.setLength(sb.length() - 1);
+
+        return sb.toString();
+    }
+
+    private static double percent(long part, long whole) {
+        return (whole == 0) ? 0 : 100.0 * part / whole;
+    }
+}
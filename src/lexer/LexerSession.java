@@ -0,0 +1,597 @@
+package lexer;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+import java.util.function.Consumer;
+
+import automata.Automaton;
+import automata.LiteralTrie;
+import utils.Buffer;
+import utils.LineIndex;
+import utils.SingleByteReader;
+import utils.SymbolTable;
+
+/**
+ * Tokenizes inputs with the rules of a {@link CompiledLexer}. A session holds
+ * the scan state of one run at a time, and the current configuration of its
+ * own automata, so it is cheap to create and must only be used by one thread.
+ * Sessions of the same compiled lexer share everything else.
+ */
+public class LexerSession {
+    private final CompiledLexer lexer;
+    private final Automaton[] automata;
+    // the trie of the literal rules of each mode
+    private final LiteralTrie[] tries;
+
+    private final LexerSettings settings;
+
+    private long id;
+    private boolean[] emitted, interned;
+    // the tokens and chars of each rule, null unless counting
+    private long[] tokenCounts, charCounts;
+    private Stack<Integer> modeStack;
+    private int[] activeAutomata;
+    private LiteralTrie activeTrie;
+    private BitSet startChars;
+    private Buffer buffer;
+    private LineIndex lineIndex;
+    // whether the tokens are streamed to the sink, so their rows are looked up as they are
+    // found and the lines before them dropped
+    private boolean streamLines;
+    // length and automaton of the longest match found so far, 0 length if none
+    private int matchLength, matchAutomaton;
+    // the live automata, the trie included, and the last live one, -1 for the trie
+    private int liveAutomata, lastLiveAutomaton;
+    private Consumer<LexToken> sink;
+    private Diagnostics diagnostics;
+    private long nextCheckpoint;
+    private long errorOffset;
+    private int errorLength;
+    private StringBuilder errorSnippet;
+
+    /**
+     * @param automata the automata of the rules of {@code lexer}, used by no other session.
+     */
+    LexerSession(CompiledLexer lexer, Automaton[] automata) {
+        this(lexer, automata, new LexerSettings());
+    }
+
+    LexerSession(CompiledLexer lexer, Automaton[] automata, LexerSettings settings) {
+        this.lexer = lexer;
+        this.automata = automata;
+        this.tries = lexer.forkTries();
+        this.settings = settings;
+        diagnostics = settings.newDiagnostics();
+    }
+
+    public CompiledLexer getCompiledLexer() {
+        return lexer;
+    }
+
+    /**
+     * @return The settings of the runs of the session, changed in place.
+     */
+    public LexerSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return The diagnostics of the last call to {@code tokenize}.
+     */
+    public Diagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    public List<LexToken> tokenize(String programFilePath) {
+        return tokenize(programFilePath, null);
+    }
+
+    /**
+     * Tokenize a program file, materializing only the tokens of the wanted types.
+     * Tokens of other types are still scanned, so ids and offsets of the
+     * returned tokens are the same as in an unfiltered run.
+     *
+     * @param programFilePath path of the program file.
+     * @param wantedTypes the token types to return, or {@code null} for all types
+     * not marked with the {@code %skip} directive.
+     * @return The wanted tokens in the order they were found.
+     */
+    public List<LexToken> tokenize(String programFilePath, Set<String> wantedTypes) {
+        List<LexToken> tokens = new ArrayList<>();
+        tokenizeFile(programFilePath, wantedTypes, tokens::add, null, false);
+        return tokens;
+    }
+
+    /**
+     * Tokenize a program file, handing each wanted token to {@code sink} as
+     * soon as it is found instead of collecting them. The rows and columns of
+     * the tokens are looked up as they are found, and only the lines after the
+     * last token are kept, so any length of input takes the same memory.
+     *
+     * @see #tokenize(String, Set)
+     */
+    public void tokenize(String programFilePath, Set<String> wantedTypes, Consumer<LexToken> sink) {
+        tokenize(programFilePath, wantedTypes, sink, null);
+    }
+
+    /**
+     * Tokenize a program file from a checkpoint of an earlier run on it, as
+     * if the run had gone on. The tokens before the checkpoint are not found
+     * again, and the diagnostics only count the invalid matches before it.
+     *
+     * @param from the checkpoint, or {@code null} to start from the beginning.
+     * @see LexerSettings#setCheckpointing(long, Consumer)
+     */
+    public void tokenize(String programFilePath, Set<String> wantedTypes, Consumer<LexToken> sink, LexerCheckpoint from) {
+        tokenizeFile(programFilePath, wantedTypes, sink, from, true);
+    }
+
+    private void tokenizeFile(String programFilePath, Set<String> wantedTypes, Consumer<LexToken> sink,
+                              LexerCheckpoint from, boolean streamLines) {
+        // a missing file leaves empty diagnostics behind, not the ones of the last run
+        diagnostics = settings.newDiagnostics();
+
+        try (Reader programReader = openProgram(programFilePath, settings.getCharset(), (from == null) ? 0 : from.getOffset())) {
+            tokenize(programReader, wantedTypes, sink, from, streamLines);
+        }
+        catch (FileNotFoundException e) {
+            System.err.println("Program file not found");
+            e.printStackTrace();
+        }
+        catch (IOException e) {
+            System.err.println("I/O Error while closing program file");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Tokenize the chars of {@code programReader}, which is left open.
+     *
+     * @see #tokenize(String, Set, Consumer)
+     */
+    public void tokenize(Reader programReader, Set<String> wantedTypes, Consumer<LexToken> sink) {
+        tokenize(programReader, wantedTypes, sink, null);
+    }
+
+    /**
+     * Tokenize the chars of {@code programReader}, which start at the offset of
+     * {@code from}. As for a file, only the lines after the last token are
+     * kept, so a reader which never ends, like a followed log, does not fill
+     * the memory.
+     *
+     * @see #tokenize(String, Set, Consumer, LexerCheckpoint)
+     */
+    public void tokenize(Reader programReader, Set<String> wantedTypes, Consumer<LexToken> sink, LexerCheckpoint from) {
+        tokenize(programReader, wantedTypes, sink, from, true);
+    }
+
+    private void tokenize(Reader programReader, Set<String> wantedTypes, Consumer<LexToken> sink, LexerCheckpoint from,
+                          boolean streamLines) {
+        setupEmittedTypes(wantedTypes);
+        this.sink = sink;
+        setup(programReader, from);
+        this.streamLines = streamLines && lineIndex != null;
+        try {
+            makeTokens();
+        }
+        catch (IOException e) {
+            System.err.println("I/O Error while scanning program file");
+            e.printStackTrace();
+        }
+        cleanup();
+    }
+
+    /**
+     * Count the tokens of a program file by type, without building any token
+     * or lexeme. Only primitive counters are updated while scanning, nothing
+     * is allocated per token. No checkpoints are taken and the invalid spans
+     * are only counted, the diagnostics keep none of them.
+     *
+     * @return The counts of the file, to be merged with those of other files.
+     */
+    public TokenStats count(String programFilePath) {
+        diagnostics = settings.newDiagnostics();
+        TokenStats stats = new TokenStats();
+
+        try (Reader programReader = openProgram(programFilePath, settings.getCharset(), 0)) {
+            stats = count(programReader);
+        }
+        catch (FileNotFoundException e) {
+            System.err.println("Program file not found");
+            e.printStackTrace();
+        }
+        catch (IOException e) {
+            System.err.println("I/O Error while closing program file");
+            e.printStackTrace();
+        }
+        return stats;
+    }
+
+    /**
+     * Count the tokens of the chars of {@code programReader}, which is left open.
+     *
+     * @see #count(String)
+     */
+    public TokenStats count(Reader programReader) {
+        setupEmittedTypes(Collections.<String>emptySet());
+        tokenCounts = new long[lexer.getNumberOfRules()];
+        charCounts = new long[lexer.getNumberOfRules()];
+        // a failed count must not leave the session counting, its next run would build no tokens
+        try {
+            setup(programReader, null);
+            try {
+                makeTokens();
+            }
+            catch (IOException e) {
+                System.err.println("I/O Error while scanning program file");
+                e.printStackTrace();
+            }
+
+            TokenStats stats = new TokenStats();
+            for (int rule = 0; rule < tokenCounts.length; rule++)
+                if (tokenCounts[rule] != 0)
+                    stats.addTokens(lexer.getTokenType(rule), tokenCounts[rule], charCounts[rule]);
+            stats.addInput(lineIndex.getNumberOfLines(), buffer.getOffset(), diagnostics);
+            return stats;
+        }
+        finally {
+            tokenCounts = null;
+            charCounts = null;
+            cleanup();
+        }
+    }
+
+    static Reader openProgram(String programFilePath, Charset charset, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(programFilePath);
+        if (SingleByteReader.isSingleByte(charset)) {
+            in.getChannel().position(offset);
+            return new SingleByteReader(in, charset);
+        }
+
+        // in other charsets the byte offset of a char is not known, the chars before it are decoded again
+        Reader reader = new InputStreamReader(in, charset);
+        for (long skipped = 0, step; skipped < offset; skipped += step)
+            if ((step = reader.skip(offset - skipped)) <= 0)
+                break;
+        return reader;
+    }
+
+    private void makeTokens() throws IOException {
+        int ch;
+
+        while (true) {
+            ch = buffer.get();
+
+            if (ch == -1) {
+                if (buffer.size() == 0)
+                    break;
+
+                // we have an outstanding match/non-match, the chars after it are scanned again
+                handlePossibleMatch();
+
+                resetAllAutomata();
+                resetMatch();
+                continue;
+            }
+
+            advanceAutomata(ch); // advance those automata which are not in dead state
+
+            if (liveAutomata == 0) {
+                handlePossibleMatch();
+
+                resetAllAutomata();
+                resetMatch();
+                if (settings.getCheckpointListener() != null && tokenCounts == null && buffer.getOffset() >= nextCheckpoint)
+                    checkpoint();
+            }
+            else {
+                updateMatch();
+                if (liveAutomata == 1 && lastLiveAutomaton != -1)
+                    accelerate(automata[lastLiveAutomaton]);
+            }
+        }
+
+        flushError();
+    }
+
+    // Only between two tokens, with no error span pending and not between the
+    // '\r' and the '\n' of a line break, else it waits for the next token.
+    private void checkpoint() {
+        if (errorLength != 0 || buffer.getPrevious() == '\r')
+            return;
+
+        long offset = buffer.getOffset();
+        long row = 1, lineStart = 0;
+        if (lineIndex != null) {
+            row = lineIndex.getRow(offset);
+            lineStart = offset - (lineIndex.getCol(offset) - 1);
+        }
+
+        List<String> modeNames = new ArrayList<>();
+        for (int mode : modeStack)
+            modeNames.add(lexer.getModeName(mode));
+
+        settings.getCheckpointListener().accept(new LexerCheckpoint(offset, id, row, lineStart, modeNames,
+            diagnostics.getErrorCount(), diagnostics.getInvalidCharCount(), -1));
+        nextCheckpoint = offset + settings.getCheckpointInterval();
+    }
+
+    private void setupEmittedTypes(Set<String> wantedTypes) {
+        int rules = lexer.getNumberOfRules();
+        Set<String> skippedTypes = lexer.getSkippedTypes();
+
+        emitted = new boolean[rules];
+        for (int idx = 0; idx < rules; idx++) {
+            String type = lexer.getTokenType(idx);
+            emitted[idx] = (wantedTypes == null) ? !skippedTypes.contains(type) : wantedTypes.contains(type);
+        }
+
+        interned = new boolean[rules];
+        for (int idx = 0; idx < rules; idx++)
+            interned[idx] = settings.isInterned(lexer.getTokenType(idx));
+    }
+
+    private void setup(Reader programReader, LexerCheckpoint from) {
+        resetMatch();
+        id = 0;
+        modeStack = new Stack<>();
+        if (tokenCounts != null)
+            lineIndex = LineIndex.countingLines();
+        else
+            lineIndex = settings.isLineTracking() ? new LineIndex() : null;
+        diagnostics = settings.newDiagnostics();
+        errorLength = 0;
+        errorSnippet = new StringBuilder();
+        long offset = 0;
+
+        if (from == null) {
+            enterMode(lexer.getModeIndex(Lexer.INITIAL_MODE));
+        }
+        else {
+            for (String mode : from.getModes()) {
+                int modeIdx = lexer.getModeIndex(mode);
+                if (modeIdx == -1)
+                    throw new IllegalArgumentException("Checkpoint is in undeclared mode " + mode);
+                enterMode(modeIdx);
+            }
+            id = from.getId();
+            if (settings.isLineTracking())
+                lineIndex = new LineIndex(from.getRow(), from.getLineStart());
+            diagnostics.addCounts(from.getErrorCount(), from.getInvalidCharCount());
+            offset = from.getOffset();
+        }
+
+        for (Automaton automaton : automata)
+            automaton.reset();
+        for (LiteralTrie trie : tries)
+            if (trie != null)
+                trie.reset();
+        buffer = new Buffer(programReader, lineIndex, offset);
+        nextCheckpoint = offset + settings.getCheckpointInterval();
+    }
+
+    private void cleanup() {
+        id = -1;
+        lineIndex = null;
+        streamLines = false;
+        emitted = null;
+        interned = null;
+        modeStack = null;
+        activeAutomata = null;
+        activeTrie = null;
+        startChars = null;
+        sink = null;
+        errorSnippet = null;
+        buffer = null;
+    }
+
+    private void handlePossibleMatch() throws IOException {
+        if (matchLength != 0) {
+            handleMatch(matchLength, matchAutomaton);
+        }
+        else {
+            buffer.reset();
+            skipInvalid();
+        }
+        buffer.reset();
+    }
+
+    // Drop the char at which the failed match started, and all the chars after it
+    // which cannot start any token. They are added to the current error span.
+    private void skipInvalid() throws IOException {
+        int ch = buffer.get();
+        do {
+            addToError((char) ch);
+            buffer.skip(1);
+        } while ((ch = buffer.get()) != -1 && !startChars.get(ch));
+    }
+
+    private void addToError(char ch) {
+        if (errorLength == 0)
+            errorOffset = buffer.getOffset();
+        if (tokenCounts == null && errorSnippet.length() < diagnostics.getMaxSnippetLength()
+                && (settings.isEmitErrorTokens() || !diagnostics.isFull()))
+            errorSnippet.append(ch);
+        errorLength++;
+    }
+
+    private void flushError() {
+        if (errorLength == 0)
+            return;
+
+        // while counting, no error token is built either
+        LexToken error = null;
+        boolean counting = tokenCounts != null;
+        if (!counting && (!diagnostics.isFull() || settings.isEmitErrorTokens()))
+            error = new LexToken(id, errorOffset, lineIndex, Lexer.ERROR_TYPE, errorSnippet.toString());
+        // the diagnostics keep the token after its line is dropped
+        if (error != null && streamLines)
+            error.resolveLines();
+        diagnostics.report(error, errorLength);
+        // an id is only used up by an error token which is handed on, as without error tokens
+        if (settings.isEmitErrorTokens() && !counting) {
+            sink.accept(error);
+            id++;
+        }
+
+        errorLength = 0;
+        errorSnippet.setLength(0);
+    }
+
+    private void handleMatch(int length, int automatonIdx) {
+        flushError();
+        applyAction(lexer.getAction(automatonIdx));
+        if (streamLines)
+            lineIndex.discardBefore(buffer.getOffset());
+
+        if (tokenCounts != null) {
+            tokenCounts[automatonIdx]++;
+            charCounts[automatonIdx] += length;
+        }
+
+        // unwanted tokens only move the position, no lexeme is ever built for them
+        if (!emitted[automatonIdx]) {
+            buffer.skip(length);
+            id++;
+            return;
+        }
+
+        long offset = buffer.getOffset();
+        String type = lexer.getTokenType(automatonIdx);
+
+        // interned lexemes are looked up in the buffer, a string is only built for new ones
+        if (interned[automatonIdx]) {
+            SymbolTable symbolTable = settings.getSymbolTable();
+            int symbol = buffer.intern(length, symbolTable);
+            emit(new LexToken(id++, offset, lineIndex, type, symbolTable.getSymbol(symbol), symbol));
+            return;
+        }
+
+        emit(new LexToken(id++, offset, lineIndex, type, buffer.consume(length)));
+    }
+
+    private void emit(LexToken token) {
+        if (streamLines)
+            token.resolveLines();
+        sink.accept(token);
+    }
+
+    private void applyAction(ModeAction action) {
+        switch (action.kind) {
+            case PUSH:
+                enterMode(action.mode);
+                break;
+
+            case POP:
+                // popping the last mode keeps the lexer in it
+                if (modeStack.size() > 1) {
+                    modeStack.pop();
+                    switchToMode(modeStack.peek());
+                }
+                break;
+
+            case BEGIN:
+                modeStack.pop();
+                enterMode(action.mode);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void enterMode(int mode) {
+        modeStack.push(mode);
+        switchToMode(mode);
+    }
+
+    private void switchToMode(int mode) {
+        activeAutomata = lexer.getRules(mode);
+        activeTrie = tries[mode];
+        startChars = lexer.getStartChars(mode);
+    }
+
+    private void advanceAutomata(int ch) {
+        if (ch < 0)
+            throw new IllegalArgumentException("Trying to advance automata on invalid symbol");
+
+        char c = (char) ch;
+        liveAutomata = 0;
+        for (int idx : activeAutomata) {
+            Automaton automaton = automata[idx];
+            if (!automaton.isInDeadState()) {
+                automaton.advance(c);
+                if (!automaton.isInDeadState()) {
+                    liveAutomata++;
+                    lastLiveAutomaton = idx;
+                }
+            }
+        }
+
+        // a single step for all the literal rules of the mode
+        if (activeTrie != null && !activeTrie.isInDeadState()) {
+            activeTrie.advance(c);
+            if (!activeTrie.isInDeadState()) {
+                liveAutomata++;
+                lastLiveAutomaton = -1;
+            }
+        }
+    }
+
+    // When only one automaton is left and it is looping on itself, the chars
+    // which keep it in its state are skipped in bulk instead of one advance each.
+    private void accelerate(Automaton automaton) throws IOException {
+        if (!automaton.isInAccelerableState())
+            return;
+
+        if (buffer.getWhile(automaton::skipSelfLoop) != 0 && automaton.isInFinalState()) {
+            matchLength = buffer.size();
+            matchAutomaton = lastLiveAutomaton;
+        }
+    }
+
+    private void resetAllAutomata() {
+        for (int idx : activeAutomata)
+            automata[idx].reset();
+        if (activeTrie != null)
+            activeTrie.reset();
+    }
+
+    // the match at the current position wins over all the shorter ones, and the
+    // first rule in a final state wins over the later ones, the trie giving the
+    // first of its literal rules
+    private void updateMatch() {
+        int rule = LiteralTrie.NO_RULE;
+        if (activeTrie != null)
+            rule = activeTrie.getMatchedRule();
+
+        for (int idx : activeAutomata) {
+            if (rule != LiteralTrie.NO_RULE && idx > rule)
+                break;
+            if (automata[idx].isInFinalState()) {
+                rule = idx;
+                break;
+            }
+        }
+
+        if (rule != LiteralTrie.NO_RULE) {
+            matchLength = buffer.size();
+            matchAutomaton = rule;
+        }
+    }
+
+    private void resetMatch() {
+        matchLength = 0;
+        matchAutomaton = -1;
+    }
+}
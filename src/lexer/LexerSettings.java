@@ -0,0 +1,149 @@
+package lexer;
+
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import utils.SymbolTable;
+
+/**
+ * How the inputs are tokenized, apart from the rules: error reporting, line
+ * tracking, the charset, checkpoints and interning. A {@link Lexer} keeps the
+ * settings of the runs it starts, each of which gets a copy, and every
+ * {@link LexerSession} has its own.
+ */
+public class LexerSettings {
+    private int maxErrors, maxSnippetLength;
+    private boolean emitErrorTokens, trackLines;
+    private Charset charset;
+    private long checkpointInterval;
+    private Consumer<LexerCheckpoint> checkpointListener;
+    private SymbolTable symbolTable;
+    private Set<String> internedTypes;
+
+    public LexerSettings() {
+        maxErrors = Diagnostics.DEFAULT_MAX_ERRORS;
+        maxSnippetLength = Diagnostics.DEFAULT_MAX_SNIPPET_LENGTH;
+        trackLines = true;
+        charset = Charset.defaultCharset();
+    }
+
+    /**
+     * A copy of {@code other}, sharing its symbol table and checkpoint listener.
+     */
+    public LexerSettings(LexerSettings other) {
+        maxErrors = other.maxErrors;
+        maxSnippetLength = other.maxSnippetLength;
+        emitErrorTokens = other.emitErrorTokens;
+        trackLines = other.trackLines;
+        charset = other.charset;
+        checkpointInterval = other.checkpointInterval;
+        checkpointListener = other.checkpointListener;
+        symbolTable = other.symbolTable;
+        internedTypes = other.internedTypes;
+    }
+
+    /**
+     * Limit the invalid spans kept by the {@link Diagnostics} of each run.
+     * Spans over the limit are only counted.
+     */
+    public void setErrorLimits(int maxErrors, int maxSnippetLength) {
+        this.maxErrors = maxErrors;
+        this.maxSnippetLength = maxSnippetLength;
+    }
+
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    public int getMaxSnippetLength() {
+        return maxSnippetLength;
+    }
+
+    /**
+     * If enabled, every invalid span is also returned among the tokens, as a
+     * token of type {@link Lexer#ERROR_TYPE}. Its lexeme is cut to the snippet length.
+     */
+    public void setEmitErrorTokens(boolean emitErrorTokens) {
+        this.emitErrorTokens = emitErrorTokens;
+    }
+
+    public boolean isEmitErrorTokens() {
+        return emitErrorTokens;
+    }
+
+    /**
+     * If disabled, the line breaks of the input are not recorded and tokens
+     * only know their offset, their row and column are -1. Enabled by default.
+     */
+    public void setLineTracking(boolean trackLines) {
+        this.trackLines = trackLines;
+    }
+
+    public boolean isLineTracking() {
+        return trackLines;
+    }
+
+    /**
+     * The charset of the program files, the platform default unless set. ASCII
+     * and ISO-8859-1 files are read by widening their bytes, without decoding.
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Hand a checkpoint to {@code listener} at the first token boundary after
+     * every {@code interval} chars, before any later token reaches the sink.
+     * Tokenizing can be resumed from any of them. A {@code null} listener
+     * stops checkpointing.
+     */
+    public void setCheckpointing(long interval, Consumer<LexerCheckpoint> listener) {
+        if (listener != null && interval <= 0)
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+
+        this.checkpointInterval = interval;
+        this.checkpointListener = listener;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @return The listener of the checkpoints, {@code null} if none are taken.
+     */
+    public Consumer<LexerCheckpoint> getCheckpointListener() {
+        return checkpointListener;
+    }
+
+    /**
+     * Intern the lexemes of the tokens of {@code types} in {@code symbolTable},
+     * giving them its symbol ids. Equal lexemes then share one {@code String},
+     * built only the first time the lexeme is seen. The table is kept across
+     * calls to {@code tokenize}, so ids stay the same for all the inputs. A
+     * {@code null} table stops interning. The table is not thread safe, it
+     * must not be shared with sessions on other threads.
+     */
+    public void setSymbolTable(SymbolTable symbolTable, Set<String> types) {
+        this.symbolTable = symbolTable;
+        this.internedTypes = (symbolTable == null) ? null : new TreeSet<>(types);
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    boolean isInterned(String type) {
+        return symbolTable != null && internedTypes.contains(type);
+    }
+
+    Diagnostics newDiagnostics() {
+        return new Diagnostics(maxErrors, maxSnippetLength);
+    }
+}
@@ -0,0 +1,23 @@
+package lexer;
+
+/**
+ * What happens to the mode stack of the lexer after a token is matched.
+ */
+class ModeAction {
+    enum Kind {
+        NONE,   /** Stay in the current mode */
+        PUSH,   /** Enter a mode, returning to the current one on a POP */
+        POP,    /** Return to the mode before the last PUSH */
+        BEGIN   /** Replace the current mode */
+    }
+
+    static final ModeAction NONE = new ModeAction(Kind.NONE, -1);
+
+    final Kind kind;
+    final int mode;
+
+    ModeAction(Kind kind, int mode) {
+        this.kind = kind;
+        this.mode = mode;
+    }
+}
@@ -0,0 +1,209 @@
+package lexer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import utils.RingBuffer;
+import utils.RingBufferReader;
+import utils.SingleByteReader;
+
+/**
+ * Tokenize a file with each stage on its own thread: reading blocks of bytes,
+ * decoding them, scanning, and handing the tokens to the sink. The stages are
+ * connected by {@link RingBuffer}s, so a slow stage holds back the ones before
+ * it, and I/O and output overlap with scanning.
+ */
+public class PipelinedTokenizer {
+    public static final int BLOCK_SIZE = 64 * 1024, RING_CAPACITY = 16, TOKEN_BATCH_SIZE = 1024;
+
+    private final Lexer lexer;
+    private final Charset charset;
+
+    public PipelinedTokenizer(Lexer lexer, Charset charset) {
+        this.lexer = lexer;
+        this.charset = charset;
+    }
+
+    /**
+     * Like {@link Lexer#tokenize(String, Set, Consumer)}, with {@code sink}
+     * running on the calling thread while the file is still being scanned.
+     * The rows and columns of the tokens are looked up on the scanning thread,
+     * before they are handed over, as the lines keep being added to there.
+     *
+     * @throws IOException if reading the file fails in any stage.
+     */
+    public void tokenize(String programFilePath, Set<String> wantedTypes, Consumer<LexToken> sink) throws IOException {
+        RingBuffer<ByteBuffer> bytes = new RingBuffer<>(RING_CAPACITY);
+        RingBuffer<CharBuffer> chars = new RingBuffer<>(RING_CAPACITY);
+        RingBuffer<List<LexToken>> tokens = new RingBuffer<>(RING_CAPACITY);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        lexer.clearDiagnostics();
+        try (InputStream in = new FileInputStream(programFilePath)) {
+            Runnable cancelAll = () -> {
+                bytes.cancel();
+                chars.cancel();
+                tokens.cancel();
+            };
+
+            List<Thread> stages = new ArrayList<>();
+            stages.add(startStage("lexer-reader", failure, cancelAll, () -> read(in, bytes)));
+            stages.add(startStage("lexer-decoder", failure, cancelAll, () -> decode(bytes, chars)));
+            stages.add(startStage("lexer-scanner", failure, cancelAll, () -> scan(chars, wantedTypes, tokens)));
+
+            try {
+                for (List<LexToken> batch = tokens.take(); batch != null; batch = tokens.take())
+                    for (LexToken token : batch)
+                        sink.accept(token);
+            }
+            catch (CancellationException e) {
+                // a stage failed, its failure is reported below
+            }
+            catch (RuntimeException e) {
+                cancelAll.run();
+                throw e;
+            }
+            finally {
+                joinAll(stages);
+            }
+        }
+
+        Throwable cause = failure.get();
+        if (cause instanceof IOException)
+            throw (IOException) cause;
+        if (cause != null)
+            throw new IOException("Pipeline stage failed", cause);
+    }
+
+    private interface Stage {
+        void run() throws IOException;
+    }
+
+    private static Thread startStage(String name, AtomicReference<Throwable> failure, Runnable cancelAll, Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            }
+            catch (CancellationException e) {
+                // another stage failed first
+            }
+            catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+                cancelAll.run();
+            }
+        }, name);
+
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void joinAll(List<Thread> stages) {
+        boolean interrupted = false;
+        for (Thread stage : stages) {
+            while (true) {
+                try {
+                    stage.join();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static void read(InputStream in, RingBuffer<ByteBuffer> bytes) throws IOException {
+        while (true) {
+            byte[] block = new byte[BLOCK_SIZE];
+            int read = in.read(block);
+            if (read == -1)
+                break;
+            bytes.put(ByteBuffer.wrap(block, 0, read));
+        }
+        bytes.close();
+    }
+
+    private void decode(RingBuffer<ByteBuffer> bytes, RingBuffer<CharBuffer> chars) {
+        if (SingleByteReader.isSingleByte(charset)) {
+            widen(bytes, chars);
+            return;
+        }
+
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        // bytes of a char split between two blocks wait for the next block
+        ByteBuffer leftover = ByteBuffer.allocate(0);
+        for (ByteBuffer in = bytes.take(); in != null; in = bytes.take()) {
+            if (leftover.hasRemaining()) {
+                ByteBuffer joined = ByteBuffer.allocate(leftover.remaining() + in.remaining());
+                joined.put(leftover).put(in).flip();
+                in = joined;
+            }
+
+            CharBuffer out = CharBuffer.allocate((int) (in.remaining() * decoder.maxCharsPerByte()) + 1);
+            decoder.decode(in, out, false);
+            leftover = in;
+
+            out.flip();
+            if (out.hasRemaining())
+                chars.put(out);
+        }
+
+        CharBuffer out = CharBuffer.allocate((int) (leftover.remaining() * decoder.maxCharsPerByte()) + 16);
+        decoder.decode(leftover, out, true);
+        decoder.flush(out);
+        out.flip();
+        if (out.hasRemaining())
+            chars.put(out);
+
+        chars.close();
+    }
+
+    // every byte is a char, no decoder and no leftover bytes are needed
+    private void widen(RingBuffer<ByteBuffer> bytes, RingBuffer<CharBuffer> chars) {
+        boolean ascii = charset.equals(StandardCharsets.US_ASCII);
+        for (ByteBuffer in = bytes.take(); in != null; in = bytes.take()) {
+            char[] out = new char[in.remaining()];
+            SingleByteReader.widen(in.array(), in.arrayOffset() + in.position(), out.length, out, 0, ascii);
+            chars.put(CharBuffer.wrap(out));
+        }
+
+        chars.close();
+    }
+
+    private void scan(RingBuffer<CharBuffer> chars, Set<String> wantedTypes, RingBuffer<List<LexToken>> tokens) {
+        // tokens are handed over in batches, not one by one
+        List<LexToken> batch = new ArrayList<>(TOKEN_BATCH_SIZE);
+
+        lexer.tokenize(new RingBufferReader(chars), wantedTypes, token -> {
+            if (batch.size() == TOKEN_BATCH_SIZE) {
+                tokens.put(new ArrayList<>(batch));
+                batch.clear();
+            }
+            token.resolveLines();
+            batch.add(token);
+        });
+
+        if (!batch.isEmpty())
+            tokens.put(batch);
+        tokens.close();
+    }
+}
@@ -0,0 +1,297 @@
+package lexer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import utils.StringEscapeUtils;
+import utils.Varint;
+
+/**
+ * An inverted index of the tokens of a corpus, from token type and lexeme to
+ * the files and offsets where they occur, as written by
+ * {@link TokenIndexBuilder}. The index file is memory mapped, and a query
+ * only reads the pages of the terms it looks up, so opening a large index is
+ * cheap. Queries may run on any number of threads at once.
+ *
+ * <p>
+ * The file starts with a header of fixed size, followed by the token types,
+ * the indexed files, the postings, the lexemes and the term directory. The
+ * directory has an entry of {@link #ENTRY_SIZE} bytes per term, sorted by
+ * type and lexeme, so a term is found by binary search, and all the terms of
+ * a type are next to each other. The postings of a term list each file it
+ * occurs in, by id, and its offsets there, both as gaps from the previous one,
+ * in {@link Varint varints}. Offsets are in chars, as the lexer counts them.
+ * The whole file is one mapping, so an index is at most 2GB, and the
+ * occurrences of a term are counted in an int.
+ */
+public class TokenIndex implements Closeable {
+    static final int MAGIC = 0x4C584958, VERSION = 1;
+    // magic, version, rules checksum, types, files and terms, and the positions of the sections and the end
+    static final int HEADER_SIZE = 4 + 4 + 8 + 3 * 4 + 5 * 8;
+    // type, lexeme position, postings position and number of occurrences
+    static final int ENTRY_SIZE = 4 + 8 + 8 + 4;
+
+    /**
+     * An occurrence of a term found by a query.
+     */
+    public static final class Occurrence {
+        public final int fileId;
+        public final String path, tokenType, lexeme;
+        public final long offset;
+
+        Occurrence(int fileId, String path, String tokenType, String lexeme, long offset) {
+            this.fileId = fileId;
+            this.path = path;
+            this.tokenType = tokenType;
+            this.lexeme = lexeme;
+            this.offset = offset;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s@%d: %s %s", path, offset, tokenType, StringEscapeUtils.escape(lexeme));
+        }
+    }
+
+    // what the index knows of a file, to tell whether it changed since it was indexed
+    static final class IndexedFile {
+        final String path;
+        final long modified, size, checksum;
+
+        IndexedFile(String path, long modified, long size, long checksum) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long rulesChecksum;
+    private final List<String> types;
+    private final List<IndexedFile> files;
+    private final int termCount, directory;
+
+    /**
+     * @throws IOException if the file cannot be read or is not an index of this version.
+     */
+    public TokenIndex(String indexFilePath) throws IOException {
+        channel = FileChannel.open(Paths.get(indexFilePath), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Index is too large to map: " + indexFilePath);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            ByteBuffer in = buffer.duplicate();
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+                throw new IOException("Not a token index: " + indexFilePath);
+            if (in.getInt() != VERSION)
+                throw new IOException("Unsupported token index version: " + indexFilePath);
+
+            rulesChecksum = in.getLong();
+            int typeCount = in.getInt(), fileCount = in.getInt();
+            termCount = in.getInt();
+            long filesPos = in.getLong(), directoryPos = in.getLong();
+            in.getLong();   // postings, found through the directory
+            in.getLong();   // lexemes, as well
+            if (in.getLong() != channel.size())
+                throw new IOException("Truncated token index: " + indexFilePath);
+
+            List<String> types = new ArrayList<>();
+            for (int idx = 0; idx < typeCount; idx++)
+                types.add(Varint.readString(in));
+            this.types = Collections.unmodifiableList(types);
+
+            in.position((int) filesPos);
+            List<IndexedFile> files = new ArrayList<>();
+            for (int idx = 0; idx < fileCount; idx++)
+                files.add(new IndexedFile(Varint.readString(in), in.getLong(), in.getLong(), in.getLong()));
+            this.files = Collections.unmodifiableList(files);
+
+            directory = (int) directoryPos;
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw (e instanceof IOException) ? (IOException) e : new IOException("Corrupt token index: " + indexFilePath, e);
+        }
+    }
+
+    /**
+     * @return The types of the terms, sorted.
+     */
+    public List<String> getTypes() {
+        return types;
+    }
+
+    /**
+     * @return The paths of the indexed files, by id.
+     */
+    public List<String> getFiles() {
+        List<String> paths = new ArrayList<>();
+        for (IndexedFile file : files)
+            paths.add(file.path);
+        return paths;
+    }
+
+    public int getTermCount() {
+        return termCount;
+    }
+
+    long getRulesChecksum() {
+        return rulesChecksum;
+    }
+
+    List<IndexedFile> getIndexedFiles() {
+        return files;
+    }
+
+    /**
+     * @return The occurrences of {@code lexeme} as a token of {@code type}, in all the files.
+     */
+    public int getCount(String type, String lexeme) {
+        int entry = findTerm(type, lexeme);
+        return (entry == -1) ? 0 : buffer.getInt(directory + entry * ENTRY_SIZE + 20);
+    }
+
+    public List<Occurrence> find(String type, String lexeme) {
+        List<Occurrence> occurrences = new ArrayList<>();
+        find(type, lexeme, occurrences::add);
+        return occurrences;
+    }
+
+    /**
+     * Hand the occurrences of {@code lexeme} as a token of {@code type} to
+     * {@code sink}, by file id and offset.
+     *
+     * @param lexeme the lexeme, or {@code null} for the tokens of {@code type} whatever their lexeme,
+     * by lexeme first.
+     */
+    public void find(String type, String lexeme, Consumer<Occurrence> sink) {
+        int typeIdx = Collections.binarySearch(types, type);
+        if (typeIdx < 0)
+            return;
+
+        if (lexeme != null) {
+            int entry = findTerm(type, lexeme);
+            if (entry != -1)
+                readPostings(entry, sink);
+            return;
+        }
+
+        for (int entry = firstEntryOfType(typeIdx); entry < termCount && getEntryType(entry) == typeIdx; entry++)
+            readPostings(entry, sink);
+    }
+
+    /**
+     * Hand all the occurrences of all the terms to {@code sink}.
+     */
+    void forEach(Consumer<Occurrence> sink) {
+        for (int entry = 0; entry < termCount; entry++)
+            readPostings(entry, sink);
+    }
+
+    // the entry of the term, -1 if it is not in the index
+    private int findTerm(String type, String lexeme) {
+        int typeIdx = Collections.binarySearch(types, type);
+        if (typeIdx < 0)
+            return -1;
+
+        int low = firstEntryOfType(typeIdx), high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = (getEntryType(mid) != typeIdx) ? 1 : getLexeme(mid).compareTo(lexeme);
+            if (cmp == 0)
+                return mid;
+            if (cmp < 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return -1;
+    }
+
+    private int firstEntryOfType(int typeIdx) {
+        int low = 0, high = termCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEntryType(mid) < typeIdx)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int getEntryType(int entry) {
+        return buffer.getInt(directory + entry * ENTRY_SIZE);
+    }
+
+    private String getLexeme(int entry) {
+        ByteBuffer in = buffer.duplicate();
+        in.position((int) buffer.getLong(directory + entry * ENTRY_SIZE + 4));
+        return Varint.readString(in);
+    }
+
+    private void readPostings(int entry, Consumer<Occurrence> sink) {
+        String type = types.get(getEntryType(entry)), lexeme = getLexeme(entry);
+        ByteBuffer in = buffer.duplicate();
+        in.position((int) buffer.getLong(directory + entry * ENTRY_SIZE + 12));
+
+        long fileCount = Varint.read(in);
+        int fileId = 0;
+        for (long file = 0; file < fileCount; file++) {
+            fileId += (int) Varint.read(in);
+            String path = files.get(fileId).path;
+            long offsetCount = Varint.read(in), offset = 0;
+            for (long idx = 0; idx < offsetCount; idx++) {
+                offset += Varint.read(in);
+                sink.accept(new Occurrence(fileId, path, type, lexeme, offset));
+            }
+        }
+    }
+
+    /**
+     * The mapping stays until it is garbage collected, but no query may be
+     * run once the index is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static void showExecutionFormat() {
+        System.out.println("Format: java -cp classpath lexer.TokenIndex indexFilePath type [lexeme]");
+        System.out.println("Arguments in square brackets denote optional.");
+        System.out.println("lexeme: With escapes like \\n, all the tokens of the type if it is left out.");
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2 && args.length != 3) {
+            showExecutionFormat();
+            return;
+        }
+
+        try (TokenIndex index = new TokenIndex(args[0])) {
+            String lexeme = (args.length == 3) ? StringEscapeUtils.unescape(args[2]) : null;
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+            index.find(args[1], lexeme, out::println);
+            out.flush();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
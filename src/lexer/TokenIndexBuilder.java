@@ -0,0 +1,388 @@
+package lexer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import utils.Varint;
+
+/**
+ * Tokenizes a corpus once into a {@link TokenIndex}. Updating an existing
+ * index only tokenizes the files which changed since: a file whose
+ * modification time and size are the ones indexed is taken as it is, and a
+ * file which was touched but whose contents have the same checksum only gets
+ * its new time. The postings of the files kept are copied from the old index,
+ * files which are no longer in the corpus are dropped, and the new index
+ * replaces the old one at once. If the rules, the indexed types or the
+ * charset changed, every file is tokenized again.
+ */
+public class TokenIndexBuilder {
+    private final Lexer lexer;
+    private Set<String> types;
+    private Charset charset;
+
+    // the postings of the index being built, by type and lexeme: pairs of file id and offset
+    private Map<String, Map<String, Postings>> terms;
+    private int lexedCount, keptCount, droppedCount;
+
+    // an entry of the postings holds the offset in its low bits and the file id above them, so that
+    // entries sort by file and offset
+    private static final int OFFSET_BITS = 40;
+    private static final long MAX_OFFSET = (1L << OFFSET_BITS) - 1;
+    private static final int MAX_FILES = 1 << (63 - OFFSET_BITS);
+
+    private static final class Postings {
+        long[] entries = new long[4];
+        int size;
+
+        void add(int fileId, long offset) {
+            if (offset > MAX_OFFSET)
+                throw new IllegalArgumentException("Offset is too large to index: " + offset);
+
+            if (size == entries.length)
+                entries = Arrays.copyOf(entries, size * 2);
+            entries[size++] = ((long) fileId << OFFSET_BITS) | offset;
+        }
+    }
+
+    public TokenIndexBuilder(Lexer lexer) {
+        this.lexer = lexer;
+        charset = Charset.defaultCharset();
+    }
+
+    /**
+     * @param types the types to index, or {@code null} for all the types not
+     * marked with the {@code %skip} directive.
+     */
+    public void setTypes(Set<String> types) {
+        this.types = (types == null) ? null : new TreeSet<>(types);
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Build the index of the program files at {@code indexFilePath}, or
+     * update the index already there.
+     *
+     * @return A line telling how many files were tokenized, kept and dropped.
+     * @throws IllegalArgumentException if there are more than {@code 2^23}
+     * files, or a token is {@code 2^40} chars or more into its file.
+     */
+    public String update(String indexFilePath, List<String> programFilePaths) throws IOException {
+        terms = new HashMap<>();
+        lexedCount = keptCount = droppedCount = 0;
+        long rulesChecksum = getRulesChecksum();
+
+        // files are keyed by their absolute path, and numbered in the order they are listed
+        Set<String> paths = new LinkedHashSet<>();
+        for (String path : programFilePaths)
+            paths.add(Paths.get(path).toAbsolutePath().normalize().toString());
+        if (paths.size() > MAX_FILES)
+            throw new IllegalArgumentException("Too many files to index: " + paths.size());
+        List<TokenIndex.IndexedFile> files = new ArrayList<>();
+
+        TokenIndex old = null;
+        if (Files.exists(Paths.get(indexFilePath))) {
+            old = new TokenIndex(indexFilePath);
+            if (old.getRulesChecksum() != rulesChecksum) {
+                old.close();
+                old = null;
+            }
+        }
+
+        try {
+            Map<String, Integer> oldIds = new HashMap<>();
+            if (old != null)
+                for (TokenIndex.IndexedFile file : old.getIndexedFiles())
+                    oldIds.put(file.path, oldIds.size());
+            // the new id of each file of the old index which is kept, -1 for the others
+            int[] kept = new int[oldIds.size()];
+            Arrays.fill(kept, -1);
+
+            LexerSession session = lexer.getCompiledLexer().newSession();
+            session.getSettings().setCharset(charset);
+            session.getSettings().setLineTracking(false);
+
+            for (String path : paths) {
+                Integer oldId = oldIds.get(path);
+                TokenIndex.IndexedFile indexed = (oldId == null) ? null : old.getIndexedFiles().get(oldId);
+                int fileId = files.size();
+                try {
+                    long modified = Files.getLastModifiedTime(Paths.get(path)).toMillis(), size = Files.size(Paths.get(path));
+                    if (indexed != null && indexed.modified == modified && indexed.size == size) {
+                        kept[oldId] = fileId;
+                        files.add(indexed);
+                        continue;
+                    }
+
+                    long checksum = getChecksum(Paths.get(path));
+                    files.add(new TokenIndex.IndexedFile(path, modified, size, checksum));
+                    if (indexed != null && indexed.size == size && indexed.checksum == checksum) {
+                        kept[oldId] = fileId;
+                        continue;
+                    }
+
+                    session.tokenize(path, types, token -> addPosting(token.tokenType, token.lexeme, fileId, token.offset));
+                    lexedCount++;
+                }
+                catch (IOException e) {
+                    System.err.println("Cannot read program file " + path);
+                }
+            }
+
+            if (old != null) {
+                old.forEach(occurrence -> {
+                    if (kept[occurrence.fileId] != -1)
+                        addPosting(occurrence.tokenType, occurrence.lexeme, kept[occurrence.fileId], occurrence.offset);
+                });
+                keptCount = (int) Arrays.stream(kept).filter(id -> id != -1).count();
+                for (TokenIndex.IndexedFile file : old.getIndexedFiles())
+                    if (!paths.contains(file.path))
+                        droppedCount++;
+            }
+        }
+        finally {
+            if (old != null)
+                old.close();
+        }
+
+        int termCount = write(indexFilePath, rulesChecksum, files);
+        terms = null;
+        return String.format("%d files indexed, %d tokenized, %d unchanged, %d dropped, %d terms",
+                             files.size(), lexedCount, keptCount, droppedCount, termCount);
+    }
+
+    private void addPosting(String type, String lexeme, int fileId, long offset) {
+        terms.computeIfAbsent(type, t -> new HashMap<>()).computeIfAbsent(lexeme, l -> new Postings()).add(fileId, offset);
+    }
+
+    // the checksum of the contents of a file, read a block at a time
+    private static long getChecksum(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] block = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(path)) {
+            for (int read; (read = in.read(block)) != -1; )
+                crc.update(block, 0, read);
+        }
+        return crc.getValue();
+    }
+
+    // a checksum of all that decides which tokens are indexed and at which offsets
+    private long getRulesChecksum() {
+        CRC32 crc = new CRC32();
+        StringBuilder sb = new StringBuilder();
+
+        for (int rule = 0; rule < lexer.getNumberOfRules(); rule++) {
+            ModeAction action = lexer.getAction(rule);
+            sb.append(lexer.getTokenType(rule)).append('\0').append(lexer.getRegex(rule).getRawString())
+              .append('\0').append(action.kind).append(action.mode).append('\n');
+        }
+        for (String mode : lexer.getModes())
+            sb.append(mode).append(Arrays.toString(lexer.getRules(mode))).append('\n');
+        sb.append(lexer.getSkippedTypes()).append('\n');
+        sb.append(types).append('\n');
+        sb.append(charset.name());
+
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    // write the index next to its path, then move it there, so the path always holds a whole index
+    private int write(String indexFilePath, long rulesChecksum, List<TokenIndex.IndexedFile> files) throws IOException {
+        Path target = Paths.get(indexFilePath), temp = Paths.get(indexFilePath + ".tmp");
+        List<String> typeList = new ArrayList<>(new TreeSet<>(terms.keySet()));
+
+        int termCount = 0;
+        for (Map<String, Postings> lexemes : terms.values())
+            termCount += lexemes.size();
+        int[] entryTypes = new int[termCount], counts = new int[termCount];
+        long[] lexemePositions = new long[termCount], postingsPositions = new long[termCount];
+        long filesPos, postingsPos, lexemesPos, directoryPos, end;
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.write(new byte[TokenIndex.HEADER_SIZE]);
+            for (String type : typeList)
+                Varint.writeString(out, type);
+
+            filesPos = out.size();
+            for (TokenIndex.IndexedFile file : files) {
+                Varint.writeString(out, file.path);
+                out.writeLong(file.modified);
+                out.writeLong(file.size);
+                out.writeLong(file.checksum);
+            }
+
+            postingsPos = out.size();
+            List<List<String>> lexemeLists = new ArrayList<>();
+            int entry = 0;
+            for (int typeIdx = 0; typeIdx < typeList.size(); typeIdx++) {
+                Map<String, Postings> lexemes = terms.get(typeList.get(typeIdx));
+                List<String> sorted = new ArrayList<>(new TreeMap<>(lexemes).keySet());
+                lexemeLists.add(sorted);
+                for (String lexeme : sorted) {
+                    entryTypes[entry] = typeIdx;
+                    postingsPositions[entry] = out.size();
+                    counts[entry] = writePostings(out, lexemes.get(lexeme));
+                    entry++;
+                }
+            }
+
+            lexemesPos = out.size();
+            entry = 0;
+            for (List<String> sorted : lexemeLists) {
+                for (String lexeme : sorted) {
+                    lexemePositions[entry++] = out.size();
+                    Varint.writeString(out, lexeme);
+                }
+            }
+
+            directoryPos = out.size();
+            for (entry = 0; entry < termCount; entry++) {
+                out.writeInt(entryTypes[entry]);
+                out.writeLong(lexemePositions[entry]);
+                out.writeLong(postingsPositions[entry]);
+                out.writeInt(counts[entry]);
+            }
+            out.flush();
+
+            // the size counter stops at the largest int
+            end = out.size();
+            if (end == Integer.MAX_VALUE)
+                throw new IOException("Index is too large: " + indexFilePath);
+
+            ByteBuffer header = ByteBuffer.allocate(TokenIndex.HEADER_SIZE);
+            header.putInt(TokenIndex.MAGIC).putInt(TokenIndex.VERSION).putLong(rulesChecksum);
+            header.putInt(typeList.size()).putInt(files.size()).putInt(termCount);
+            header.putLong(filesPos).putLong(directoryPos).putLong(postingsPos).putLong(lexemesPos).putLong(end);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return termCount;
+    }
+
+    // the files of the term by id, each with its offsets, as gaps; returns the number of offsets
+    private static int writePostings(DataOutputStream out, Postings postings) throws IOException {
+        long[] entries = postings.entries;
+        Arrays.sort(entries, 0, postings.size);
+
+        int fileCount = 0;
+        for (int idx = 0; idx < postings.size; idx++)
+            if (idx == 0 || (entries[idx] >>> OFFSET_BITS) != (entries[idx - 1] >>> OFFSET_BITS))
+                fileCount++;
+        Varint.write(out, fileCount);
+
+        long previousFile = 0;
+        for (int from = 0, to; from < postings.size; from = to) {
+            long fileId = entries[from] >>> OFFSET_BITS;
+            for (to = from + 1; to < postings.size && (entries[to] >>> OFFSET_BITS) == fileId; to++)
+                ;
+            Varint.write(out, fileId - previousFile);
+            Varint.write(out, to - from);
+            long previousOffset = 0;
+            for (int idx = from; idx < to; idx++) {
+                long offset = entries[idx] & MAX_OFFSET;
+                Varint.write(out, offset - previousOffset);
+                previousOffset = offset;
+            }
+            previousFile = fileId;
+        }
+        return postings.size;
+    }
+
+    // the regular files of the paths, the ones under a directory in the order of their names
+    private static List<String> listFiles(List<String> paths) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (String path : paths) {
+            if (!Files.isDirectory(Paths.get(path))) {
+                files.add(path);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(Paths.get(path))) {
+                files.addAll(walk.filter(Files::isRegularFile).map(Path::toString).sorted().collect(Collectors.toList()));
+            }
+        }
+        return files;
+    }
+
+    private static void showExecutionFormat() {
+        System.out.println(
+            "Format: java -cp classpath lexer.TokenIndexBuilder regexFilePath indexFilePath programFilePath... "
+            + "[-types TYPE,TYPE] [-charset name]"
+        );
+        System.out.println("Arguments in square brackets denote optional.");
+        System.out.println("programFilePath: A file, or a directory whose files are all indexed.");
+        System.out.println("-types: Types to index, the ones not skipped by default.");
+    }
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        Set<String> types = null;
+        Charset charset = Charset.defaultCharset();
+
+        try {
+            for (int idx = 0; idx < args.length; idx++) {
+                switch (args[idx]) {
+                    case "-types":      types = new TreeSet<>(Arrays.asList(args[++idx].split(","))); break;
+                    case "-charset":    charset = Charset.forName(args[++idx]); break;
+                    default:            positional.add(args[idx]);
+                }
+            }
+            if (positional.size() < 3)
+                throw new IllegalArgumentException("Expected at least 3 arguments");
+        }
+        catch (RuntimeException e) {
+            showExecutionFormat();
+            return;
+        }
+
+        TokenIndexBuilder builder = new TokenIndexBuilder(new Lexer(positional.get(0), false));
+        builder.setTypes(types);
+        builder.setCharset(charset);
+        try {
+            System.out.println(builder.update(positional.get(1), listFiles(positional.subList(2, positional.size()))));
+        }
+        catch (IOException e) {
+            System.err.println("I/O error while indexing: " + e.getMessage());
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package lexer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import algorithms.SubsetConstruction;
+import algorithms.Thompson;
+import automata.Automaton;
+import automata.DFA;
+import automata.NFA;
+import automata.PikeVM;
+import regex.Regex;
+import regex.RegexTree;
+import utils.StringEscapeUtils;
+
+/**
+ * Finds the tokens of one type whose lexemes match a pattern, like grep over
+ * tokens, without tokenizing whole files. Every lexeme of the type and the
+ * pattern contains some literal, found in their regex trees, so only the
+ * places where the literal occurs are lexed, and the rest of a file is only
+ * run over by {@link String#indexOf(String)}.
+ *
+ * <p>
+ * When no token can span lines, as no rule matches a line break before its
+ * last char, and no rule changes the mode, every line start is where a token
+ * starts, or a run of invalid chars goes on, in {@link Lexer#INITIAL_MODE}.
+ * Then only the line of an occurrence is lexed. Otherwise a line start tells
+ * nothing, as it may be inside a block comment or a mode entered lines
+ * before, and a file with an occurrence is tokenized from its start. With no
+ * literal to look for the files are tokenized whole.
+ */
+public class TokenSearch {
+    private final String type;
+    // matches whole lexemes, null matches any
+    private final Automaton pattern;
+    private final String requiredLiteral;
+    private final LexerSession session;
+    private final Set<String> allTypes;
+    // whether the lexer is in the initial mode at every line start, between tokens
+    private final boolean lineStartsAreBoundaries;
+    private Charset charset;
+
+    // the input searched, and a line start of it with its row, rows are counted from there
+    private String text;
+    private int countedTo, countedRow;
+    // the token found by the last scan around an occurrence
+    private LexToken found;
+
+    /**
+     * @param type the type of the tokens to find.
+     * @param lexemePattern a regex in the syntax of the definitions file the
+     * whole lexeme must match, or {@code null} to find all the tokens of {@code type}.
+     * @throws IllegalArgumentException if no rule has {@code type}, or the pattern cannot be parsed.
+     */
+    public TokenSearch(Lexer lexer, String type, String lexemePattern) {
+        this.type = type;
+
+        String ruleLiteral = null;
+        for (int rule = 0; rule < lexer.getNumberOfRules(); rule++) {
+            if (!lexer.getTokenType(rule).equals(type))
+                continue;
+            // the literal of a type of several rules must be the one of all of them
+            String literal = new RegexTree(lexer.getRegex(rule)).getRequiredLiteral();
+            ruleLiteral = (ruleLiteral == null || ruleLiteral.equals(literal)) ? literal : "";
+        }
+        if (ruleLiteral == null)
+            throw new IllegalArgumentException("No rule of type " + type);
+
+        if (lexemePattern == null) {
+            pattern = null;
+            requiredLiteral = ruleLiteral;
+        }
+        else {
+            RegexTree tree = new RegexTree(new Regex(lexemePattern));
+            NFA nfa = Thompson.convert(tree);
+            DFA dfa = SubsetConstruction.convert(nfa, Lexer.DEFAULT_MAX_DFA_STATES);
+            pattern = (dfa == null) ? new PikeVM(nfa) : dfa;
+
+            String patternLiteral = tree.getRequiredLiteral();
+            requiredLiteral = (patternLiteral.length() > ruleLiteral.length()) ? patternLiteral : ruleLiteral;
+        }
+
+        boolean lineStartsAreBoundaries = true;
+        for (int rule = 0; rule < lexer.getNumberOfRules() && lineStartsAreBoundaries; rule++)
+            lineStartsAreBoundaries = lexer.getAction(rule).kind == ModeAction.Kind.NONE
+                && !new RegexTree(lexer.getRegex(rule)).hasInnerLineBreak();
+        this.lineStartsAreBoundaries = lineStartsAreBoundaries;
+
+        session = lexer.getCompiledLexer().newSession();
+        session.getSettings().setEmitErrorTokens(true);
+        allTypes = lexer.getTokenTypes();
+        allTypes.add(Lexer.ERROR_TYPE);
+        charset = Charset.defaultCharset();
+    }
+
+    /**
+     * @return The literal looked for, the empty string if the files are tokenized whole.
+     */
+    public String getRequiredLiteral() {
+        return requiredLiteral;
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Search a program file, which is read into memory whole.
+     *
+     * @see #search(String, Consumer)
+     */
+    public void searchFile(String programFilePath, Consumer<LexToken> sink) throws IOException {
+        search(new String(Files.readAllBytes(Paths.get(programFilePath)), charset), sink);
+    }
+
+    /**
+     * Hand the tokens found in {@code input} to {@code sink}, in the order of
+     * the input. Their offsets, rows and columns are those of the input, but
+     * their ids are not counted from its start.
+     */
+    public void search(String input, Consumer<LexToken> sink) {
+        text = input;
+        countedTo = 0;
+        countedRow = 1;
+        try {
+            if (requiredLiteral.isEmpty() || !lineStartsAreBoundaries) {
+                if (text.contains(requiredLiteral))
+                    tokenizeFrom(0, sink);
+                return;
+            }
+
+            int from = 0;
+            for (int idx; (idx = text.indexOf(requiredLiteral, from)) != -1; ) {
+                LexToken token = scanLine(idx);
+                if (token == null) {
+                    // the occurrence is in a run of invalid chars
+                    from = idx + 1;
+                    continue;
+                }
+
+                if (isMatch(token))
+                    sink.accept(token);
+                // an occurrence starting inside the token belongs to no other token
+                from = end(token);
+            }
+        }
+        finally {
+            text = null;
+            found = null;
+        }
+    }
+
+    // lex the line of offset idx, starting in the initial mode, for the token around idx, a
+    // token ends at the end of its line at the latest
+    private LexToken scanLine(int idx) {
+        int start = lineStart(idx), end = lineEnd(idx);
+        LexerCheckpoint from = new LexerCheckpoint(start, 0, rowAt(start), start,
+            Collections.singletonList(Lexer.INITIAL_MODE), 0, 0, -1);
+
+        found = null;
+        session.tokenize(new StringReader(text.substring(start, end)), allTypes, token -> {
+            if (token.offset <= idx && idx < end(token))
+                found = token;
+        }, from);
+        return found;
+    }
+
+    private void tokenizeFrom(int from, Consumer<LexToken> sink) {
+        session.tokenize(new StringReader(text), Collections.singleton(type), token -> {
+            if (token.offset >= from && isMatch(token))
+                sink.accept(token);
+        });
+    }
+
+    private boolean isMatch(LexToken token) {
+        if (!token.tokenType.equals(type))
+            return false;
+        if (pattern == null)
+            return true;
+
+        pattern.reset();
+        for (int idx = 0; idx < token.lexeme.length(); idx++) {
+            pattern.advance(token.lexeme.charAt(idx));
+            if (pattern.isInDeadState())
+                return false;
+        }
+        return pattern.isInFinalState();
+    }
+
+    private static int end(LexToken token) {
+        return (int) token.offset + token.lexeme.length();
+    }
+
+    // the start of the line holding offset, a "\r\n" belongs to the line it ends
+    private int lineStart(int offset) {
+        int idx = offset;
+        if (idx > 0 && idx < text.length() && text.charAt(idx) == '\n' && text.charAt(idx - 1) == '\r')
+            idx--;
+        while (idx > 0 && !isLineBreak(text.charAt(idx - 1)))
+            idx--;
+        return idx;
+    }
+
+    // the offset after the line break ending the line holding offset
+    private int lineEnd(int offset) {
+        int idx = offset;
+        while (idx < text.length() && !isLineBreak(text.charAt(idx)))
+            idx++;
+        if (idx < text.length() - 1 && text.charAt(idx) == '\r' && text.charAt(idx + 1) == '\n')
+            return idx + 2;
+        return Math.min(idx + 1, text.length());
+    }
+
+    // the row of a line start, counted from the last one asked for as LineIndex counts them
+    private int rowAt(int lineStart) {
+        if (lineStart >= countedTo)
+            countedRow += countLineBreaks(countedTo, lineStart);
+        else
+            countedRow -= countLineBreaks(lineStart, countedTo);
+        countedTo = lineStart;
+        return countedRow;
+    }
+
+    private int countLineBreaks(int from, int to) {
+        int breaks = 0;
+        for (int idx = from; idx < to; idx++) {
+            char ch = text.charAt(idx);
+            if (ch == '\r' || (ch == '\n' && (idx == 0 || text.charAt(idx - 1) != '\r')))
+                breaks++;
+        }
+        return breaks;
+    }
+
+    private static boolean isLineBreak(char ch) {
+        return ch == '\n' || ch == '\r';
+    }
+
+    private static void showExecutionFormat() {
+        System.out.println(
+            "Format: java -cp classpath lexer.TokenSearch regexFilePath type programFilePath... "
+            + "[-pattern regex] [-charset name]"
+        );
+        System.out.println("Arguments in square brackets denote optional.");
+        System.out.println("-pattern: Regex the whole lexeme must match, in the syntax of the regex file.");
+    }
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        String lexemePattern = null;
+        Charset charset = Charset.defaultCharset();
+
+        try {
+            for (int idx = 0; idx < args.length; idx++) {
+                switch (args[idx]) {
+                    case "-pattern":    lexemePattern = args[++idx]; break;
+                    case "-charset":    charset = Charset.forName(args[++idx]); break;
+                    default:            positional.add(args[idx]);
+                }
+            }
+            if (positional.size() < 3)
+                throw new IllegalArgumentException("Expected at least 3 arguments");
+        }
+        catch (RuntimeException e) {
+            showExecutionFormat();
+            return;
+        }
+
+        TokenSearch search;
+        try {
+            search = new TokenSearch(new Lexer(positional.get(0), false), positional.get(1), lexemePattern);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        search.setCharset(charset);
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        for (String programFilePath : positional.subList(2, positional.size())) {
+            try {
+                search.searchFile(programFilePath, token -> out.printf("%s:%d:%d: %s\n",
+                    programFilePath, token.getRow(), token.getCol(), StringEscapeUtils.escape(token.lexeme)));
+            }
+            catch (IOException e) {
+                System.err.println("Cannot read program file " + programFilePath);
+            }
+            out.flush();
+        }
+    }
+}
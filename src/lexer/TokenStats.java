@@ -0,0 +1,135 @@
+package lexer;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The counts of one or more tokenized inputs: the tokens and the chars of
+ * each token type, the lines, and the invalid spans and chars. Stats of
+ * different inputs, found one after the other or on different threads, are
+ * combined with {@link #merge(TokenStats)}, in any order.
+ *
+ * <p>
+ * Chars are counted as read, after decoding, so for US-ASCII and ISO-8859-1
+ * inputs they are also the bytes.
+ */
+public class TokenStats {
+    // tokens and chars of each type
+    private final Map<String, long[]> byType;
+    private long inputs, lines, chars, errorCount, invalidCharCount;
+
+    public TokenStats() {
+        byType = new TreeMap<>();
+    }
+
+    /**
+     * Count {@code tokens} more tokens of {@code type}, {@code chars} chars in all.
+     */
+    void addTokens(String type, long tokens, long chars) {
+        long[] counts = byType.computeIfAbsent(type, t -> new long[2]);
+        counts[0] += tokens;
+        counts[1] += chars;
+    }
+
+    /**
+     * Count one more input, of {@code lines} lines and {@code chars} chars.
+     */
+    void addInput(long lines, long chars, Diagnostics diagnostics) {
+        inputs++;
+        this.lines += lines;
+        this.chars += chars;
+        errorCount += diagnostics.getErrorCount();
+        invalidCharCount += diagnostics.getInvalidCharCount();
+    }
+
+    /**
+     * Add the counts of {@code other} to these.
+     */
+    public void merge(TokenStats other) {
+        for (Map.Entry<String, long[]> e : other.byType.entrySet())
+            addTokens(e.getKey(), e.getValue()[0], e.getValue()[1]);
+        inputs += other.inputs;
+        lines += other.lines;
+        chars += other.chars;
+        errorCount += other.errorCount;
+        invalidCharCount += other.invalidCharCount;
+    }
+
+    /**
+     * @return The types of which some token was found, skipped types included.
+     */
+    public Set<String> getTypes() {
+        return new TreeSet<>(byType.keySet());
+    }
+
+    public long getTokenCount(String type) {
+        long[] counts = byType.get(type);
+        return (counts == null) ? 0 : counts[0];
+    }
+
+    public long getCharCount(String type) {
+        long[] counts = byType.get(type);
+        return (counts == null) ? 0 : counts[1];
+    }
+
+    /**
+     * @return The tokens of all the types, invalid spans left out.
+     */
+    public long getTokenCount() {
+        long tokens = 0;
+        for (long[] counts : byType.values())
+            tokens += counts[0];
+        return tokens;
+    }
+
+    /**
+     * @return The number of inputs counted.
+     */
+    public long getInputCount() {
+        return inputs;
+    }
+
+    /**
+     * @return The lines of all the inputs. An input has one more line than line breaks.
+     */
+    public long getLineCount() {
+        return lines;
+    }
+
+    /**
+     * @return The chars of all the inputs, those of invalid spans included.
+     */
+    public long getCharCount() {
+        return chars;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getInvalidCharCount() {
+        return invalidCharCount;
+    }
+
+    /**
+     * @return A line per type with its tokens and chars, followed by the totals.
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("%-20s %12s %14s\n", "TYPE", "TOKENS", "CHARS"));
+        for (Map.Entry<String, long[]> e : byType.entrySet())
+            sb.append(String.format("%-20s %12d %14d\n", e.getKey(), e.getValue()[0], e.getValue()[1]));
+        sb.append(String.format("%d tokens, %d lines, %d chars in %d inputs\n", getTokenCount(), lines, chars, inputs));
+        sb.append(String.format("%d invalid matches, %d invalid chars", errorCount, invalidCharCount));
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getReport();
+    }
+}
@@ -0,0 +1,234 @@
+package lexer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import utils.Varint;
+
+/**
+ * Reads the tokens written by {@link TokenStreamWriter} straight out of the
+ * memory mapped file. It is a cursor: {@link #next()} decodes the numbers of
+ * the next token in place, and nothing is allocated per token unless its
+ * lexeme is asked for. A reader must only be used by one thread.
+ */
+public class TokenStreamReader implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer in;
+    private final int flags, start;
+    private final List<String> types;
+
+    // the current token, and where its lexeme is in the stream, -1 before the first token
+    private int typeId, length, col, lexemePos;
+    private long id, offset, row;
+
+    /**
+     * @throws IOException if the file cannot be read or is not a token stream of this version.
+     */
+    public TokenStreamReader(String tokenFilePath) throws IOException {
+        channel = FileChannel.open(Paths.get(tokenFilePath), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Token stream is too large to map: " + tokenFilePath);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            in = buffer.duplicate();
+            if (in.remaining() < 12 || in.getInt() != TokenStreamWriter.MAGIC)
+                throw new IOException("Not a token stream: " + tokenFilePath);
+            if (in.getInt() != TokenStreamWriter.VERSION)
+                throw new IOException("Unsupported token stream version: " + tokenFilePath);
+            flags = in.getInt();
+
+            int typeCount = (int) Varint.read(in);
+            List<String> types = new ArrayList<>();
+            for (int idx = 0; idx < typeCount; idx++)
+                types.add(Varint.readString(in));
+            this.types = Collections.unmodifiableList(types);
+            start = in.position();
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw (e instanceof IOException) ? (IOException) e : new IOException("Corrupt token stream: " + tokenFilePath, e);
+        }
+        rewind();
+    }
+
+    /**
+     * Go back to before the first token.
+     */
+    public void rewind() {
+        in.position(start);
+        id = -1;
+        offset = 0;
+        length = 0;
+        row = 1;
+        col = 1;
+        typeId = -1;
+        lexemePos = -1;
+    }
+
+    /**
+     * Move to the next token.
+     *
+     * @return Whether there is one, else the reader stays after the last token.
+     */
+    public boolean next() {
+        if (!in.hasRemaining())
+            return false;
+
+        typeId = (int) Varint.read(in);
+        id += Varint.read(in) + 1;
+        offset += length + Varint.read(in);
+        length = (int) Varint.read(in);
+
+        if (hasRows()) {
+            long rowGap = Varint.read(in);
+            row += rowGap;
+            col = (rowGap == 0) ? col + (int) Varint.read(in) : (int) Varint.read(in);
+        }
+
+        if (hasLexemes()) {
+            lexemePos = in.position();
+            // a char ends at each byte without the continuation bit
+            for (int chars = 0; chars < length; )
+                if (in.get() >= 0)
+                    chars++;
+        }
+        return true;
+    }
+
+    public List<String> getTypes() {
+        return types;
+    }
+
+    public boolean hasLexemes() {
+        return (flags & TokenStreamWriter.LEXEMES) != 0;
+    }
+
+    public boolean hasRows() {
+        return (flags & TokenStreamWriter.ROWS) != 0;
+    }
+
+    public int getTypeId() {
+        return typeId;
+    }
+
+    public String getType() {
+        return types.get(typeId);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The row of the token, or -1 if the stream has no rows.
+     */
+    public long getRow() {
+        return hasRows() ? row : -1;
+    }
+
+    /**
+     * @return The column of the token, or -1 if the stream has no rows.
+     */
+    public int getCol() {
+        return hasRows() ? col : -1;
+    }
+
+    /**
+     * @return The lexeme of the token, or {@code null} if the stream only refers to the program file.
+     */
+    public String getLexeme() {
+        if (!hasLexemes())
+            return null;
+
+        ByteBuffer lexeme = in.duplicate();
+        lexeme.position(lexemePos);
+        char[] chars = new char[length];
+        for (int idx = 0; idx < length; idx++)
+            chars[idx] = (char) Varint.read(lexeme);
+        return new String(chars);
+    }
+
+    /**
+     * @param source the chars of the program file the tokens were found in.
+     * @return The lexeme of the token as a view of {@code source}, which is not copied if it is a
+     * {@code CharBuffer}.
+     */
+    public CharSequence getLexeme(CharSequence source) {
+        return source.subSequence((int) offset, (int) offset + length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static void showExecutionFormat() {
+        System.out.println("Format: java -cp classpath lexer.TokenStreamReader tokenFilePath [programFilePath] [-charset name]");
+        System.out.println("Arguments in square brackets denote optional.");
+        System.out.println("programFilePath: The file the lexemes are taken from, if the token file has none.");
+    }
+
+    // prints the tokens in the format of the output file of Main
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        Charset charset = Charset.defaultCharset();
+
+        try {
+            for (int idx = 0; idx < args.length; idx++) {
+                switch (args[idx]) {
+                    case "-charset":    charset = Charset.forName(args[++idx]); break;
+                    default:            positional.add(args[idx]);
+                }
+            }
+            if (positional.size() != 1 && positional.size() != 2)
+                throw new IllegalArgumentException("Expected 1 or 2 arguments");
+        }
+        catch (RuntimeException e) {
+            showExecutionFormat();
+            return;
+        }
+
+        try (TokenStreamReader reader = new TokenStreamReader(positional.get(0))) {
+            String source = null;
+            if (positional.size() == 2)
+                source = new String(Files.readAllBytes(Paths.get(positional.get(1))), charset);
+            else if (!reader.hasLexemes()) {
+                System.err.println("The token file has no lexemes, give the program file they are taken from.");
+                return;
+            }
+
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+            out.println(LexToken.getFormattedHeading());
+            while (reader.next()) {
+                String lexeme = (source == null) ? reader.getLexeme() : reader.getLexeme(source).toString();
+                out.println(LexToken.getFormattedString(reader.getId(), reader.getRow(), reader.getCol(), reader.getType(), lexeme));
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package lexer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import utils.Varint;
+
+/**
+ * Writes tokens in a compact binary format, read back by
+ * {@link TokenStreamReader} without parsing any text.
+ *
+ * <p>
+ * The stream starts with {@link #MAGIC}, {@link #VERSION} and the flags, as
+ * ints, then the dictionary of token types, as a count and the names. Each
+ * token follows as {@link Varint varints}: the id of its type, the gap from
+ * the id after the one of the previous token, the gap from the end of the
+ * previous token to its offset, and its length. With {@link #ROWS} come the
+ * rows gap and the column, as a gap too when the row is the same, and with
+ * {@link #LEXEMES} its chars. Without them the lexeme is referred to by its
+ * offset and length in the program file. The tokens must be written in the
+ * order they are found.
+ */
+public class TokenStreamWriter implements Consumer<LexToken>, Closeable {
+    public static final int MAGIC = 0x4C585453, VERSION = 1;
+    /** Flags of the stream, the lexemes and the rows and columns are in it */
+    public static final int LEXEMES = 1, ROWS = 2;
+
+    private final DataOutputStream out;
+    private final int flags;
+    private final Map<String, Integer> typeIds;
+    private long tokenCount;
+    // the id, end, row and column of the previous token
+    private long previousId, previousEnd, previousRow;
+    private int previousCol;
+
+    /**
+     * @param types the types of the tokens which may be written.
+     * @param flags {@link #LEXEMES} and {@link #ROWS}, or 0.
+     */
+    public TokenStreamWriter(OutputStream out, Collection<String> types, int flags) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.flags = flags;
+        typeIds = new LinkedHashMap<>();
+        for (String type : types)
+            typeIds.putIfAbsent(type, typeIds.size());
+
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.out.writeInt(flags);
+        Varint.write(this.out, typeIds.size());
+        for (String type : typeIds.keySet())
+            Varint.writeString(this.out, type);
+
+        previousId = -1;
+        previousRow = 1;
+        previousCol = 1;
+    }
+
+    /**
+     * @throws UncheckedIOException if the token cannot be written.
+     */
+    @Override
+    public void accept(LexToken token) {
+        try {
+            write(token);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the type of the token is not in the
+     * dictionary, or the token comes before the previous one.
+     */
+    public void write(LexToken token) throws IOException {
+        Integer typeId = typeIds.get(token.tokenType);
+        if (typeId == null)
+            throw new IllegalArgumentException("Token type not in the dictionary: " + token.tokenType);
+        if (token.id <= previousId || token.offset < previousEnd)
+            throw new IllegalArgumentException("Token " + token.id + " comes before the previous one");
+
+        Varint.write(out, typeId);
+        Varint.write(out, token.id - previousId - 1);
+        Varint.write(out, token.offset - previousEnd);
+        Varint.write(out, token.lexeme.length());
+
+        if ((flags & ROWS) != 0) {
+            long row = token.getRow();
+            int col = token.getCol();
+            if (row < previousRow || (row == previousRow && col < previousCol))
+                throw new IllegalArgumentException("Token " + token.id + " has no row or comes before the previous one");
+            Varint.write(out, row - previousRow);
+            Varint.write(out, (row == previousRow) ? col - previousCol : col);
+            previousRow = row;
+            previousCol = col;
+        }
+
+        if ((flags & LEXEMES) != 0)
+            for (int idx = 0; idx < token.lexeme.length(); idx++)
+                Varint.write(out, token.lexeme.charAt(idx));
+
+        previousId = token.id;
+        previousEnd = token.offset + token.lexeme.length();
+        tokenCount++;
+    }
+
+    public long getTokenCount() {
+        return tokenCount;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
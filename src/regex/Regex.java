@@ -4,12 +4,23 @@ import java.util.ArrayList;
 
 import utils.StringEscapeUtils;
 
+/**
+ * A regex and its tokens. The tokens are only built when they are asked for,
+ * trees are parsed straight from the raw string by {@link RegexParser}.
+ */
 public class Regex {
-    private final String raw, normalized;
+    private final String raw;
+    private String normalized;
     private ArrayList<RegexToken> tokens, normalizedTokens;
 
     public Regex(String regex) {
         raw = regex;
+    }
+
+    private void makeTokens() {
+        if (tokens != null)
+            return;
+
         tokens = tokenize(StringEscapeUtils.unescape(raw));
         tokens = replaceRanges(tokens);
         normalizedTokens = normalize(tokens);
@@ -21,14 +32,17 @@ public class Regex {
     }
 
     public String getNormalizedString() {
+        makeTokens();
         return normalized;
     }
 
     public ArrayList<RegexToken> getTokens() {
+        makeTokens();
         return new ArrayList<>(tokens);
     }
 
     public ArrayList<RegexToken> getNormalizedTokens() {
+        makeTokens();
         return new ArrayList<>(normalizedTokens);
     }
 
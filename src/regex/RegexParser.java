@@ -0,0 +1,221 @@
+package regex;
+
+import utils.StringEscapeUtils;
+
+/**
+ * Parses a raw regex straight into the nodes of its tree, in a single pass by
+ * recursive descent. Escapes are decoded and ranges expanded as the pattern
+ * is read, no token list is built.
+ *
+ * <pre>
+ * union   := concat ('|' concat)*
+ * concat  := closure ('.'? closure)*
+ * closure := operand '*'*
+ * operand := char | 'ε' | '(' union ')' | '[' (char char)+ ']'
+ * </pre>
+ *
+ * Unions and concatenations group to the left, so the trees are the same as
+ * the ones built from the postfix form of the normalized tokens. An escaped
+ * char, including a unicode escape, is always a plain char.
+ */
+public class RegexParser {
+    private final String pattern;
+    private final RegexTreeNodePool pool;
+
+    // the current token, type null at the end of the pattern, and the index in the pattern of the next one
+    private RegexTokenType type;
+    private char value;
+    private int start, pos;
+
+    private RegexParser(String pattern, RegexTreeNodePool pool) {
+        this.pattern = pattern;
+        this.pool = pool;
+    }
+
+    /**
+     * @param pool the pool to build the nodes from, sharing the subtrees already in it, or {@code null}.
+     * @return The root of the tree of {@code pattern}.
+     * @throws RegexSyntaxException if the pattern is not a valid regex.
+     */
+    public static RegexTreeNode parse(String pattern, RegexTreeNodePool pool) {
+        RegexParser parser = new RegexParser(pattern, pool);
+        parser.next();
+
+        RegexTreeNode root = parser.parseUnion();
+        if (parser.type == RegexTokenType.BCLOSE)
+            throw parser.error("Unmatched " + RegexSpecialChar.BCLOSE.charValue(), parser.start);
+        if (parser.type != null)
+            throw parser.error("Unexpected " + parser.value, parser.start);
+
+        return root;
+    }
+
+    private RegexTreeNode parseUnion() {
+        RegexTreeNode left = parseConcat();
+        while (type == RegexTokenType.UNION) {
+            next();
+            left = node(RegexTreeNodeType.UNION, RegexSpecialChar.UNION.charValue(), left, parseConcat());
+        }
+        return left;
+    }
+
+    // the concat operator is implied between two operands
+    private RegexTreeNode parseConcat() {
+        RegexTreeNode left = parseClosure();
+        while (true) {
+            if (type == RegexTokenType.CONCAT)
+                next();
+            else if (!isOperandStart())
+                return left;
+            left = node(RegexTreeNodeType.CONCAT, RegexSpecialChar.CONCAT.charValue(), left, parseClosure());
+        }
+    }
+
+    private RegexTreeNode parseClosure() {
+        RegexTreeNode operand = parseOperand();
+        while (type == RegexTokenType.CLOSURE) {
+            operand = node(RegexTreeNodeType.CLOSURE, RegexSpecialChar.CLOSURE.charValue(), operand, null);
+            next();
+        }
+        return operand;
+    }
+
+    private RegexTreeNode parseOperand() {
+        if (type == null)
+            throw error("Missing operand", start);
+
+        RegexTreeNode operand;
+        switch (type) {
+            case CHAR:
+                operand = node(RegexTreeNodeType.CHAR, value, null, null);
+                next();
+                return operand;
+
+            case EPSILON:
+                operand = node(RegexTreeNodeType.EPSILON, value, null, null);
+                next();
+                return operand;
+
+            case BOPEN:
+                int open = start;
+                next();
+                operand = parseUnion();
+                if (type != RegexTokenType.BCLOSE)
+                    throw error("Unclosed " + RegexSpecialChar.BOPEN.charValue(), open);
+                next();
+                return operand;
+
+            case RANGEOPEN:
+                return parseRange();
+
+            default:
+                throw error("Missing operand before " + value, start);
+        }
+    }
+
+    // pairs of first and last chars, all the chars between them are unioned in order;
+    // inside a range the special chars stand for themselves
+    private RegexTreeNode parseRange() {
+        int open = start;
+        next();
+
+        RegexTreeNode range = null;
+        while (type != RegexTokenType.RANGECLOSE) {
+            if (type == null)
+                throw error("Unclosed " + RegexSpecialChar.RANGEOPEN.charValue(), open);
+
+            char first = value;
+            int firstAt = start;
+            next();
+            if (type == null || type == RegexTokenType.RANGECLOSE)
+                throw error("Range has no last char", firstAt);
+            char last = value;
+            if (last < first)
+                throw error("Range next falls before range first", firstAt);
+            next();
+
+            for (char ch = first; ; ch++) {
+                RegexTreeNode leaf = node(RegexTreeNodeType.CHAR, ch, null, null);
+                range = (range == null) ? leaf : node(RegexTreeNodeType.UNION, RegexSpecialChar.UNION.charValue(), range, leaf);
+                if (ch == last)
+                    break;
+            }
+        }
+        if (range == null)
+            throw error("Empty range", open);
+
+        next();
+        return range;
+    }
+
+    private boolean isOperandStart() {
+        return type == RegexTokenType.CHAR || type == RegexTokenType.EPSILON
+            || type == RegexTokenType.BOPEN || type == RegexTokenType.RANGEOPEN;
+    }
+
+    private RegexTreeNode node(RegexTreeNodeType type, char value, RegexTreeNode left, RegexTreeNode right) {
+        if (pool == null)
+            return new RegexTreeNode(type, value, left, right);
+        return pool.intern(type, value, left, right);
+    }
+
+    // read the token starting at pos
+    private void next() {
+        start = pos;
+        if (pos == pattern.length()) {
+            type = null;
+            return;
+        }
+
+        char ch = pattern.charAt(pos++);
+        if (ch == RegexSpecialChar.ESCAPE.charValue()) {
+            type = RegexTokenType.CHAR;
+            value = readEscaped();
+            return;
+        }
+
+        RegexSpecialChar special = RegexSpecialChar.getSpecialChar(ch);
+        type = (special == null) ? RegexTokenType.CHAR : getTokenType(special);
+        value = ch;
+    }
+
+    // the char of the escape sequence after the escape char
+    private char readEscaped() {
+        if (pos == pattern.length())
+            throw error("Incomplete escape", start);
+
+        char second = pattern.charAt(pos++);
+        if (second != StringEscapeUtils.UNICODE_ESCAPE)
+            return StringEscapeUtils.escape(second);
+
+        if (pos + 4 > pattern.length())
+            throw error("Incomplete unicode escape", start);
+        int code = 0;
+        for (int idx = 0; idx < 4; idx++) {
+            int digit = Character.digit(pattern.charAt(pos++), 16);
+            if (digit == -1)
+                throw error("Invalid unicode escape", start);
+            code = code * 16 + digit;
+        }
+        return (char) code;
+    }
+
+    private static RegexTokenType getTokenType(RegexSpecialChar special) {
+        switch (special) {
+            case BCLOSE:        return RegexTokenType.BCLOSE;
+            case BOPEN:         return RegexTokenType.BOPEN;
+            case CLOSURE:       return RegexTokenType.CLOSURE;
+            case CONCAT:        return RegexTokenType.CONCAT;
+            case EPSILON:       return RegexTokenType.EPSILON;
+            case RANGECLOSE:    return RegexTokenType.RANGECLOSE;
+            case RANGEOPEN:     return RegexTokenType.RANGEOPEN;
+            case UNION:         return RegexTokenType.UNION;
+
+            default:            return null;
+        }
+    }
+
+    private RegexSyntaxException error(String description, int index) {
+        return new RegexSyntaxException(description, pattern, index);
+    }
+}
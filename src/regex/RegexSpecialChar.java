@@ -11,6 +11,19 @@ public enum RegexSpecialChar {
     RANGEOPEN('['),
     UNION('|');
 
+    // the special char of each char value, null for the other chars
+    private static final RegexSpecialChar[] BY_CHAR;
+
+    static {
+        int max = 0;
+        for (RegexSpecialChar s : values())
+            max = Math.max(max, s.charValue);
+
+        BY_CHAR = new RegexSpecialChar[max + 1];
+        for (RegexSpecialChar s : values())
+            BY_CHAR[s.charValue] = s;
+    }
+
     private final char charValue;
 
     private RegexSpecialChar(char charValue) {
@@ -22,18 +35,10 @@ public enum RegexSpecialChar {
     }
 
     public static boolean isSpecialChar(char ch) {
-        for (RegexSpecialChar s : values())
-            if (s.charValue() == ch)
-                return true;
-                
-        return false;
+        return getSpecialChar(ch) != null;
     }
 
     public static RegexSpecialChar getSpecialChar(char ch) {
-        for (RegexSpecialChar s : values())
-            if (s.charValue() == ch)
-                return s;
-
-        return null;
+        return (ch < BY_CHAR.length) ? BY_CHAR[ch] : null;
     }
 }
@@ -0,0 +1,34 @@
+package regex;
+
+/**
+ * A regex which cannot be parsed, with the index in the raw pattern at which
+ * the parser gave up.
+ */
+public class RegexSyntaxException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final String description, pattern;
+    private final int index;
+
+    public RegexSyntaxException(String description, String pattern, int index) {
+        super(String.format("%s at index %d of %s", description, index, pattern));
+        this.description = description;
+        this.pattern = pattern;
+        this.index = index;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return The index of the offending char in the raw pattern, its length if the pattern ended too early.
+     */
+    public int getIndex() {
+        return index;
+    }
+}
@@ -1,43 +1,274 @@
 package regex;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import utils.StringEscapeUtils;
 
 public class RegexTree {
     private RegexTreeNode root;
 
+    /**
+     * @throws RegexSyntaxException if the regex cannot be parsed.
+     */
     public RegexTree(Regex regex) {
-        root = makeTree(regex);
+        root = RegexParser.parse(regex.getRawString(), null);
     }
 
-    private static RegexTreeNode makeTree(Regex regex) {
-        Stack<RegexTreeNode> operands = new Stack<>();
-        ArrayList<RegexToken> postfix = InfixToPostfix.convert(regex);
+    /**
+     * Build the tree out of the nodes of {@code pool}, sharing the subtrees
+     * which are already in it.
+     */
+    public RegexTree(Regex regex, RegexTreeNodePool pool) {
+        root = RegexParser.parse(regex.getRawString(), pool);
+    }
 
-        for (RegexToken token : postfix) {
-            if (token.isOperand()) {
-                operands.push(new RegexTreeNode(token));
-            }
-            else if (token.type == RegexTokenType.CLOSURE) {
-                RegexTreeNode left = operands.pop();
-                operands.push(new RegexTreeNode(token, left, null));
-            }
-            else {
-                RegexTreeNode right = operands.pop(), left = operands.pop();
-                operands.push(new RegexTreeNode(token, left, right));
-            }
+    public RegexTreeNode getRoot() {
+        return root;
+    }
+
+    /**
+     * @return The sets of chars matched by the largest subtrees which are
+     * unions of single chars, like ranges, and by the other single chars.
+     */
+    public List<BitSet> getCharSets() {
+        List<BitSet> sets = new ArrayList<>();
+        BitSet set = collectCharSets(root, sets);
+        if (set != null)
+            sets.add(set);
+        return sets;
+    }
+
+    // the chars matched by node if it is a union of single chars, else null with
+    // the char sets of its subtrees added to sets
+    private static BitSet collectCharSets(RegexTreeNode node, List<BitSet> sets) {
+        if (node.getLeftChild() == null) {
+            if (node.getType() != RegexTreeNodeType.CHAR)
+                return null;
+            BitSet set = new BitSet();
+            set.set(node.getValue());
+            return set;
         }
 
-        if (operands.size() != 1)
-            throw new IllegalStateException("There should be exactly one operand on the stack");
+        BitSet left = collectCharSets(node.getLeftChild(), sets);
+        BitSet right = (node.getRightChild() == null) ? null : collectCharSets(node.getRightChild(), sets);
+        if (node.getType() == RegexTreeNodeType.UNION && left != null && right != null) {
+            left.or(right);
+            return left;
+        }
 
-        return operands.pop();
+        if (left != null)
+            sets.add(left);
+        if (right != null)
+            sets.add(right);
+        return null;
     }
 
-    public RegexTreeNode getRoot() {
-        return root;
+    /**
+     * @return The lexemes the regex matches, without the empty one, in the
+     * order of its alternatives, or {@code null} if it has a closure or a
+     * concatenation matching more than {@code maxConcatLiterals} lexemes, like
+     * a run of ranges, whose automaton is much smaller than the list.
+     */
+    public List<String> getLiterals(int maxConcatLiterals) {
+        Set<String> literals = new LinkedHashSet<>();
+        if (!collectLiterals(root, literals, maxConcatLiterals))
+            return null;
+
+        literals.remove("");
+        return new ArrayList<>(literals);
+    }
+
+    // add the lexemes matched by node to literals, false if it has a closure or too large a concatenation
+    private static boolean collectLiterals(RegexTreeNode node, Set<String> literals, int maxConcatLiterals) {
+        switch (node.getType()) {
+            case CHAR:
+                literals.add(String.valueOf(node.getValue()));
+                return true;
+
+            case EPSILON:
+                literals.add("");
+                return true;
+
+            case UNION:
+                // unions group to the left, their spine is walked in a loop so that a long list of
+                // alternatives does not go deep
+                Deque<RegexTreeNode> alternatives = new ArrayDeque<>();
+                RegexTreeNode alternative = node;
+                for (; alternative.getType() == RegexTreeNodeType.UNION; alternative = alternative.getLeftChild())
+                    alternatives.push(alternative.getRightChild());
+                alternatives.push(alternative);
+
+                for (RegexTreeNode each : alternatives)
+                    if (!collectLiterals(each, literals, maxConcatLiterals))
+                        return false;
+                return true;
+
+            case CONCAT:
+                Set<String> prefixes = new LinkedHashSet<>(), suffixes = new LinkedHashSet<>();
+                if (!collectLiterals(node.getLeftChild(), prefixes, maxConcatLiterals)
+                        || !collectLiterals(node.getRightChild(), suffixes, maxConcatLiterals)
+                        || (long) prefixes.size() * suffixes.size() > maxConcatLiterals)
+                    return false;
+
+                for (String prefix : prefixes)
+                    for (String suffix : suffixes)
+                        literals.add(prefix + suffix);
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return A literal every lexeme of the regex contains, the longest one
+     * found by looking at the prefixes, suffixes and whole lexemes shared by
+     * the alternatives and the sides of each concatenation, or the empty
+     * string if there is none.
+     */
+    public String getRequiredLiteral() {
+        return collectFactors(root).required;
+    }
+
+    // what all the lexemes of a subtree have in common
+    private static final class Factors {
+        // the one lexeme of the subtree or null, and literals every lexeme starts with, ends with and contains
+        final String exact, prefix, suffix, required;
+
+        Factors(String exact, String prefix, String suffix, String required) {
+            this.exact = exact;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.required = required;
+        }
+
+        static Factors of(String exact) {
+            return new Factors(exact, exact, exact, exact);
+        }
+    }
+
+    private static final Factors NO_FACTORS = new Factors(null, "", "", "");
+
+    private static Factors collectFactors(RegexTreeNode node) {
+        switch (node.getType()) {
+            case CHAR:
+                return Factors.of(String.valueOf(node.getValue()));
+
+            case EPSILON:
+                return Factors.of("");
+
+            case UNION:
+                // walked in a loop as in collectLiterals, the alternatives only share what all of them share
+                Factors union = null;
+                RegexTreeNode alternative = node;
+                for (; alternative.getType() == RegexTreeNodeType.UNION; alternative = alternative.getLeftChild())
+                    union = unionFactors(union, collectFactors(alternative.getRightChild()));
+                return unionFactors(union, collectFactors(alternative));
+
+            case CONCAT:
+                Factors left = collectFactors(node.getLeftChild()), right = collectFactors(node.getRightChild());
+                String exact = (left.exact != null && right.exact != null) ? left.exact + right.exact : null;
+                String prefix = (left.exact != null) ? left.exact + right.prefix : left.prefix;
+                String suffix = (right.exact != null) ? left.suffix + right.exact : right.suffix;
+                String required = longest(longest(left.required, right.required), left.suffix + right.prefix);
+                return new Factors(exact, prefix, suffix, longest(required, longest(prefix, suffix)));
+
+            default:
+                return NO_FACTORS;
+        }
+    }
+
+    private static Factors unionFactors(Factors union, Factors alternative) {
+        if (union == null)
+            return alternative;
+        if (union.exact != null && union.exact.equals(alternative.exact))
+            return union;
+
+        String prefix = union.prefix, suffix = union.suffix;
+        int common = 0;
+        while (common < prefix.length() && common < alternative.prefix.length()
+                && prefix.charAt(common) == alternative.prefix.charAt(common))
+            common++;
+        prefix = prefix.substring(0, common);
+
+        common = 0;
+        while (common < suffix.length() && common < alternative.suffix.length()
+                && suffix.charAt(suffix.length() - 1 - common) == alternative.suffix.charAt(alternative.suffix.length() - 1 - common))
+            common++;
+        suffix = suffix.substring(suffix.length() - common);
+
+        String required = union.required.equals(alternative.required) ? union.required : "";
+        return new Factors(null, prefix, suffix, longest(required, longest(prefix, suffix)));
+    }
+
+    private static String longest(String a, String b) {
+        return (b.length() > a.length()) ? b : a;
+    }
+
+    /**
+     * @return Whether some lexeme of the regex has a line break, {@code \n} or
+     * {@code \r}, before its last char, so a token of it may span lines.
+     */
+    public boolean hasInnerLineBreak() {
+        return collectBreaks(root).inner;
+    }
+
+    // where the lexemes of a subtree may have line breaks
+    private static final class Breaks {
+        final boolean inner, atEnd, nonEmpty, nullable;
+
+        Breaks(boolean inner, boolean atEnd, boolean nonEmpty, boolean nullable) {
+            this.inner = inner;
+            this.atEnd = atEnd;
+            this.nonEmpty = nonEmpty;
+            this.nullable = nullable;
+        }
+    }
+
+    private static Breaks collectBreaks(RegexTreeNode node) {
+        switch (node.getType()) {
+            case CHAR:
+                char ch = node.getValue();
+                return new Breaks(false, ch == '\n' || ch == '\r', true, false);
+
+            case EPSILON:
+                return new Breaks(false, false, false, true);
+
+            case UNION:
+                // walked in a loop as in collectLiterals
+                Breaks union = null;
+                RegexTreeNode alternative = node;
+                for (; alternative.getType() == RegexTreeNodeType.UNION; alternative = alternative.getLeftChild())
+                    union = unionBreaks(union, collectBreaks(alternative.getRightChild()));
+                return unionBreaks(union, collectBreaks(alternative));
+
+            case CONCAT:
+                Breaks left = collectBreaks(node.getLeftChild()), right = collectBreaks(node.getRightChild());
+                return new Breaks(left.inner || right.inner || (left.atEnd && right.nonEmpty),
+                    right.atEnd || (right.nullable && left.atEnd),
+                    left.nonEmpty || right.nonEmpty, left.nullable && right.nullable);
+
+            case CLOSURE:
+                Breaks body = collectBreaks(node.getLeftChild());
+                // a lexeme ending with a break is followed by another one
+                return new Breaks(body.inner || (body.atEnd && body.nonEmpty), body.atEnd, body.nonEmpty, true);
+
+            default:
+                return new Breaks(true, true, true, true);
+        }
+    }
+
+    private static Breaks unionBreaks(Breaks union, Breaks alternative) {
+        if (union == null)
+            return alternative;
+        return new Breaks(union.inner || alternative.inner, union.atEnd || alternative.atEnd,
+            union.nonEmpty || alternative.nonEmpty, union.nullable || alternative.nullable);
     }
 
     private void prettyPrint(RegexTreeNode node, String prefix, String childPrefix, 
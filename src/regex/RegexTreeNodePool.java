@@ -0,0 +1,91 @@
+package regex;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash-consing of regex tree nodes: structurally equal subtrees built through
+ * the same pool are the same node, so every distinct subexpression of all the
+ * trees exists once. Pooled nodes are shared and must not be modified.
+ */
+public class RegexTreeNodePool {
+    // a node and how many times it was interned, one lookup does both
+    private static class Entry {
+        final RegexTreeNode node;
+        int uses;
+
+        Entry(RegexTreeNode node) {
+            this.node = node;
+        }
+    }
+
+    private final Map<Key, Entry> nodes;
+
+    public RegexTreeNodePool() {
+        nodes = new HashMap<>();
+    }
+
+    /**
+     * @return The pooled node with this type, value and children. The children
+     * must themselves be pooled.
+     */
+    public RegexTreeNode intern(RegexTreeNodeType type, char value, RegexTreeNode left, RegexTreeNode right) {
+        Key key = new Key(type, value, left, right);
+
+        Entry entry = nodes.get(key);
+        if (entry == null) {
+            entry = new Entry(new RegexTreeNode(type, value, left, right));
+            nodes.put(key, entry);
+        }
+        entry.uses++;
+
+        return entry.node;
+    }
+
+    /**
+     * @return How many times {@code node} was interned, 0 if it is not pooled.
+     */
+    public int getUses(RegexTreeNode node) {
+        Entry entry = nodes.get(new Key(node.getType(), node.getValue(), node.getLeftChild(), node.getRightChild()));
+        return (entry == null || entry.node != node) ? 0 : entry.uses;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    // children are pooled, so comparing them by identity compares the subtrees
+    private static class Key {
+        private final RegexTreeNodeType type;
+        private final char value;
+        private final RegexTreeNode left, right;
+        private final int hash;
+
+        Key(RegexTreeNodeType type, char value, RegexTreeNode left, RegexTreeNode right) {
+            this.type = type;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+
+            int h = type.hashCode();
+            h = 31 * h + value;
+            h = 31 * h + System.identityHashCode(left);
+            h = 31 * h + System.identityHashCode(right);
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return type == other.type && value == other.value && left == other.left && right == other.right;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import lexer.LexToken;
+import lexer.LexerOptions;
+
+/**
+ * Thin client of {@link LexerServer}, taking the same arguments as {@code Main}
+ * plus the port of the server.
+ */
+public class LexerClient {
+    private static final String PORT_FLAG = "-port";
+
+    public static void main(String[] args) {
+        int port = LexerServer.DEFAULT_PORT;
+        List<String> lexerArgs = new ArrayList<>(Arrays.asList(args));
+
+        int portAt = lexerArgs.indexOf(PORT_FLAG);
+        LexerOptions options;
+        try {
+            if (portAt != -1) {
+                port = Integer.parseInt(lexerArgs.get(portAt + 1));
+                lexerArgs.subList(portAt, portAt + 2).clear();
+            }
+            options = LexerOptions.parse(lexerArgs.toArray(new String[0]));
+        }
+        catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            showExecutionFormat();
+            return;
+        }
+
+        List<String> positional = options.getPositional();
+        if (positional.size() != 2 && positional.size() != 3) {
+            showExecutionFormat();
+            return;
+        }
+
+        // the server does not share our working directory
+        List<String> request = new ArrayList<>();
+        request.add(new File(positional.get(0)).getAbsolutePath());
+        request.add(new File(positional.get(1)).getAbsolutePath());
+        request.addAll(options.getFlags());
+
+        String outputFilePath = (positional.size() == 3) ? positional.get(2) : null;
+
+        try {
+            tokenize(port, request, outputFilePath);
+        }
+        catch (IOException e) {
+            System.err.println("I/O Error while talking to the lexer server on port " + port);
+            e.printStackTrace();
+        }
+    }
+
+    private static void tokenize(int port, List<String> request, String outputFilePath) throws IOException {
+        try (
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            Writer tokensOut = (outputFilePath == null)
+                ? new PrintWriter(System.out) : new BufferedWriter(new FileWriter(outputFilePath))
+        ) {
+            out.write(String.join(String.valueOf(Protocol.ARGS_SEPARATOR), request));
+            out.newLine();
+            out.flush();
+
+            System.out.println("Starting tokenization.\n");
+            if (outputFilePath == null)
+                System.out.println("\nTokens Found:");
+            else
+                System.out.println("\nWriting tokens to file: " + outputFilePath);
+
+            tokensOut.write(LexToken.getFormattedHeading());
+            tokensOut.write(System.lineSeparator());
+
+            List<String> diagnostics = new ArrayList<>();
+            for (String line = in.readLine(); line != null && !line.equals(Protocol.END); line = in.readLine()) {
+                switch (Protocol.getTag(line)) {
+                    case Protocol.TOKEN:
+                        tokensOut.write(Protocol.getText(line));
+                        tokensOut.write(System.lineSeparator());
+                        break;
+
+                    case Protocol.DIAGNOSTIC:
+                        diagnostics.add(Protocol.getText(line));
+                        break;
+
+                    case Protocol.FAILURE:
+                        System.err.println("Lexer server failed: " + Protocol.getText(line));
+                        break;
+
+                    default:
+                        System.err.println("Unexpected response from lexer server: " + line);
+                        break;
+                }
+            }
+            tokensOut.flush();
+
+            System.out.println("\nFinished tokenization.");
+            if (!diagnostics.isEmpty())
+                System.err.println("\n" + String.join("\n", diagnostics));
+        }
+    }
+
+    private static void showExecutionFormat() {
+        System.out.println(
+            "Format: java -cp classpath server.LexerClient regexFilePath programFilePath [outputFilePath] "
+            + "[-port port] [flags]"
+        );
+        System.out.println("Arguments in square brackets denote optional.");
+        System.out.println("-port: Port of the lexer server, " + LexerServer.DEFAULT_PORT + " by default.");
+        // the flags of Main which the server serves
+        for (String line : LexerOptions.getFlagsUsage())
+            if (!LexerServer.UNSUPPORTED_FLAGS.contains(line.substring(0, line.indexOf(':'))))
+                System.out.println(line);
+    }
+}
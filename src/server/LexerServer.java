@@ -0,0 +1,287 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import lexer.CompiledLexer;
+import lexer.Diagnostics;
+import lexer.Lexer;
+import lexer.LexerOptions;
+import lexer.LexerSession;
+
+/**
+ * A long running lexer, listening on a local port.
+ *
+ * <p>
+ * Compiled lexers are kept warm, keyed by the path of their definitions file
+ * and the options they were compiled with, and are only compiled again when that file changes. Each connection sends
+ * one tokenize request, see {@link Protocol}, and the tokens are streamed back
+ * as they are found, a batch at a time. Requests on the same definitions run at once, each in
+ * a session of its own over the shared compiled rules.
+ *
+ * <p>
+ * At most {@link #MAX_WORKERS} requests are served at once and
+ * {@link #MAX_QUEUED} more wait for a worker, the connections over that are
+ * answered with a failure. A client which sends no request for
+ * {@link #READ_TIMEOUT} milliseconds is dropped. The
+ * {@link #UNSUPPORTED_FLAGS flags of {@code Main}} which write elsewhere than
+ * the tokens in the response, like {@code -count} or {@code -follow}, fail
+ * the request.
+ */
+public class LexerServer {
+    public static final int DEFAULT_PORT = 7391;
+    public static final int MAX_WORKERS = 16, MAX_QUEUED = 64, READ_TIMEOUT = 30_000;
+    /**
+     * The flags of {@code Main} whose output does not go to the response, or
+     * which need a terminal or files of their own
+     */
+    public static final Set<String> UNSUPPORTED_FLAGS = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+        "-v", "-profile", "-profile-report", "-profile-layout", "-pipelined", "-checkpoint", "-resume", "-follow",
+        "-count", "-binary", "-binary-refs")));
+    // the tokens written between flushes of the response
+    private static final int FLUSH_TOKENS = 256;
+
+    // the rules of a definitions file, compiled by the first request which needs them while the
+    // others wait for it
+    private static class CachedLexer {
+        final FutureTask<CompiledLexer> lexer;
+        final long lastModified;
+
+        CachedLexer(FutureTask<CompiledLexer> lexer, long lastModified) {
+            this.lexer = lexer;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final ThreadPoolExecutor workers;
+    private final Map<String, CachedLexer> lexers;
+
+    public LexerServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED));
+        workers.allowCoreThreadTimeOut(true);
+        lexers = new ConcurrentHashMap<>();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accept connections until the server is closed.
+     */
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    workers.execute(() -> handle(socket));
+                }
+                catch (RejectedExecutionException e) {
+                    refuse(socket);
+                }
+            }
+            catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("I/O Error while accepting connection");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        workers.shutdown();
+    }
+
+    private static void refuse(Socket socket) {
+        try (
+            Socket s = socket;
+            BufferedWriter out = new BufferedWriter(
+                new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))
+        ) {
+            writeLine(out, Protocol.line(Protocol.FAILURE, "Lexer server is busy, try again later"));
+            writeLine(out, Protocol.END);
+        }
+        catch (IOException | UncheckedIOException e) {
+            // the client is gone already
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (
+            Socket s = socket;
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(
+                new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))
+        ) {
+            s.setSoTimeout(READ_TIMEOUT);
+            String request = in.readLine();
+            if (request != null) {
+                try {
+                    tokenize(request, out);
+                }
+                catch (RuntimeException e) {
+                    writeLine(out, Protocol.line(Protocol.FAILURE, String.valueOf(e.getMessage())));
+                }
+                writeLine(out, Protocol.END);
+            }
+        }
+        catch (SocketTimeoutException e) {
+            System.err.println("Client sent no request in " + READ_TIMEOUT + " ms, dropped");
+        }
+        catch (IOException | UncheckedIOException e) {
+            System.err.println("I/O Error while serving request");
+            e.printStackTrace();
+        }
+    }
+
+    private void tokenize(String request, BufferedWriter out) {
+        String[] args = request.split(String.valueOf(Protocol.ARGS_SEPARATOR));
+        LexerOptions options = LexerOptions.parse(args);
+
+        List<String> positional = options.getPositional();
+        if (positional.size() != 2)
+            throw new IllegalArgumentException("Expected definitions and program file, got " + Arrays.toString(args));
+
+        List<String> unsupported = getUnsupportedFlags(options);
+        if (!unsupported.isEmpty())
+            throw new IllegalArgumentException("Not supported by the lexer server: " + String.join(" ", unsupported));
+
+        if (!new File(positional.get(1)).isFile())
+            throw new IllegalArgumentException("Program file not found: " + positional.get(1));
+
+        CompiledLexer lexer = getLexer(positional.get(0), options.getMaxDfaStates(), options.isDropShadowed(),
+            options.getCompileThreads());
+
+        // the scan state is the session's, the compiled rules are shared with the other requests
+        LexerSession session = lexer.newSession();
+        options.configure(session.getSettings());
+        Set<String> wantedTypes = options.getWantedTypes(lexer);
+
+        // flushed every batch of tokens, so the client gets them while the file is still being scanned
+        long[] written = new long[1];
+        session.tokenize(positional.get(1), wantedTypes, token -> {
+            writeLine(out, Protocol.line(Protocol.TOKEN, token.getFormattedString()));
+            if (++written[0] % FLUSH_TOKENS == 0)
+                flush(out);
+        });
+
+        Diagnostics diagnostics = session.getDiagnostics();
+        if (diagnostics.getErrorCount() != 0)
+            for (String line : diagnostics.getReport().split("\n"))
+                writeLine(out, Protocol.line(Protocol.DIAGNOSTIC, line));
+    }
+
+    // the unsupported flags of the request, in the order they were given
+    private static List<String> getUnsupportedFlags(LexerOptions options) {
+        List<String> unsupported = new ArrayList<>();
+        for (String flag : options.getFlags())
+            if (UNSUPPORTED_FLAGS.contains(flag) && !unsupported.contains(flag))
+                unsupported.add(flag);
+        return unsupported;
+    }
+
+    // the number of compile threads does not change the rules, it is not part of the key
+    private CompiledLexer getLexer(String definitionsPath, int maxDfaStates, boolean dropShadowed, int compileThreads) {
+        File definitions = new File(definitionsPath);
+        if (!definitions.isFile())
+            throw new IllegalArgumentException("Definitions file not found: " + definitionsPath);
+
+        long lastModified = definitions.lastModified();
+        String path = definitions.getAbsolutePath();
+        String key = path + Protocol.ARGS_SEPARATOR + maxDfaStates + Protocol.ARGS_SEPARATOR + dropShadowed;
+
+        // the rules are compiled outside the map, which is only locked to install the task
+        CachedLexer cached = lexers.get(key);
+        if (cached == null || cached.lastModified != lastModified) {
+            CachedLexer fresh = new CachedLexer(new FutureTask<>(() ->
+                new Lexer(path, false, maxDfaStates, dropShadowed, compileThreads).getCompiledLexer()), lastModified);
+            cached = lexers.merge(key, fresh, (old, ignored) -> (old.lastModified == lastModified) ? old : fresh);
+            if (cached == fresh)
+                fresh.lexer.run();
+        }
+
+        try {
+            return cached.lexer.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while compiling " + path);
+        }
+        catch (ExecutionException e) {
+            // the next request compiles the rules again
+            lexers.remove(key, cached);
+            Throwable cause = e.getCause();
+            throw (cause instanceof RuntimeException) ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    private static void flush(BufferedWriter out) {
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeLine(BufferedWriter out, String line) {
+        try {
+            out.write(line);
+            out.newLine();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        if (args.length == 1) {
+            port = Integer.parseInt(args[0]);
+        }
+        else if (args.length != 0) {
+            System.out.println("Format: java -cp classpath server.LexerServer [port]");
+            return;
+        }
+
+        try {
+            LexerServer server = new LexerServer(port);
+            System.out.println("Lexer server listening on port " + server.getPort());
+            server.serve();
+        }
+        catch (IOException e) {
+            System.err.println("Could not start the lexer server");
+            e.printStackTrace();
+        }
+    }
+}
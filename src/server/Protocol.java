@@ -0,0 +1,75 @@
+package server;
+
+/**
+ * The line based protocol between {@link LexerServer} and {@link LexerClient}.
+ *
+ * <p>
+ * The client sends one line with the arguments of the request separated by
+ * tabs: the definitions file, the program file, then the flags. The server
+ * answers with one line per token, then the diagnostics, then {@link #END}.
+ * Every line but the last starts with a tag and a space.
+ */
+class Protocol {
+    static final char ARGS_SEPARATOR = '\t';
+
+    /** A formatted token */
+    static final String TOKEN = "T";
+    /** A line of the diagnostics report */
+    static final String DIAGNOSTIC = "D";
+    /** The request failed, with the reason */
+    static final String FAILURE = "X";
+    /** End of the response */
+    static final String END = "END";
+
+    static String line(String tag, String text) {
+        return tag + ' ' + escape(text);
+    }
+
+    static String getTag(String line) {
+        int space = line.indexOf(' ');
+        return (space == -1) ? line : line.substring(0, space);
+    }
+
+    static String getText(String line) {
+        int space = line.indexOf(' ');
+        return (space == -1) ? "" : unescape(line.substring(space + 1));
+    }
+
+    // lexemes may contain line breaks, which would end the line early
+    static String escape(String str) {
+        StringBuilder sb = new StringBuilder(str.length());
+
+        for (int idx = 0; idx < str.length(); idx++) {
+            char ch = str.charAt(idx);
+            switch (ch) {
+                case '\\':  sb.append("\\\\"); break;
+                case '\n':  sb.append("\\n"); break;
+                case '\r':  sb.append("\\r"); break;
+                default:    sb.append(ch); break;
+            }
+        }
+
+        return sb.toString();
+    }
+
+    static String unescape(String str) {
+        StringBuilder sb = new StringBuilder(str.length());
+
+        for (int idx = 0; idx < str.length(); idx++) {
+            char ch = str.charAt(idx);
+            if (ch != '\\' || idx == str.length() - 1) {
+                sb.append(ch);
+                continue;
+            }
+
+            char next = str.charAt(++idx);
+            switch (next) {
+                case 'n':   sb.append('\n'); break;
+                case 'r':   sb.append('\r'); break;
+                default:    sb.append(next); break;
+            }
+        }
+
+        return sb.toString();
+    }
+}
@@ -1,79 +1,170 @@
 package utils;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
 
 public class Buffer {
-    public static final int DEFAULT_SIZE = 512;
+    public static final int DEFAULT_SIZE = 8192;
+
+    public interface CharSpan {
+        /**
+         * @return The index of the first char in {@code chars[from, to)} which
+         * does not belong to the span, or {@code to} if all of them do.
+         */
+        int skip(char[] chars, int from, int to);
+    }
+
+    // chars in [startPtr, currEndPtr) are read but not consumed,
+    // chars in [currEndPtr, endPtr) are read from the input but not yet returned by get()
+    private int startPtr, endPtr, currEndPtr;
+    private long startOffset;
+    // the last char consumed before the start of the array, -1 if none
+    private int previous;
+    private char[] buffer;
+    private Reader reader;
+    private LineIndex lineIndex;
+
+    public Buffer(Reader reader) {
+        this(reader, null);
+    }
 
-    private int startPtr, endPtr, currEndPtr, size;
-    private int[] buffer;
-    private InputStreamReader isr;
+    /**
+     * @param reader the input.
+     * @param lineIndex where to record the line breaks of the input while
+     * it is read, or {@code null} to not track lines.
+     */
+    public Buffer(Reader reader, LineIndex lineIndex) {
+        this(reader, lineIndex, 0);
+    }
 
-    public Buffer(InputStreamReader isr) {
-        startPtr = endPtr = currEndPtr = size = 0;
-        buffer = new int[DEFAULT_SIZE];
-        this.isr = isr;
+    /**
+     * @param startOffset the offset in the input of the first char of {@code reader},
+     * when the input is read from the middle.
+     */
+    public Buffer(Reader reader, LineIndex lineIndex, long startOffset) {
+        startPtr = endPtr = currEndPtr = 0;
+        this.startOffset = startOffset;
+        previous = -1;
+        buffer = new char[DEFAULT_SIZE];
+        this.reader = reader;
+        this.lineIndex = lineIndex;
     }
 
     public int get() throws IOException {
-        int ch;
+        if (currEndPtr == endPtr && !fill())
+            return -1;
+
+        return buffer[currEndPtr++];
+    }
 
-        if (currEndPtr != endPtr) {
-            ch = buffer[currEndPtr];
-            currEndPtr = moduloAdd(currEndPtr, 1, buffer.length);
-            size++;
-            return ch;
+    /**
+     * Read ahead as long as the chars belong to {@code span}, checking a whole
+     * block at a time. The first char not in the span is left to {@link #get()}.
+     *
+     * @return The number of chars read.
+     */
+    public int getWhile(CharSpan span) throws IOException {
+        int read = 0;
+
+        while (currEndPtr != endPtr || fill()) {
+            int stop = span.skip(buffer, currEndPtr, endPtr);
+            read += stop - currEndPtr;
+            currEndPtr = stop;
+            if (stop != endPtr)
+                break;
         }
-        
-        if (size == buffer.length)
-            throw new IllegalStateException("Buffer size exceeded");
 
-        ch = isr.read();
-        if (ch == -1)
-            return -1;
+        return read;
+    }
+
+    // read the next block of the input, making space for it first
+    private boolean fill() throws IOException {
+        if (startPtr > 0) {
+            previous = buffer[startPtr - 1];
+            System.arraycopy(buffer, startPtr, buffer, 0, endPtr - startPtr);
+            endPtr -= startPtr;
+            currEndPtr -= startPtr;
+            startPtr = 0;
+        }
+        if (endPtr == buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+        int read = reader.read(buffer, endPtr, buffer.length - endPtr);
+        if (read <= 0)
+            return false;
 
-        buffer[endPtr] = ch;
-        endPtr = moduloAdd(endPtr, 1, buffer.length);
-        currEndPtr = moduloAdd(currEndPtr, 1, buffer.length);
-        size++;
+        if (lineIndex != null)
+            lineIndex.scan(buffer, endPtr, endPtr + read, startOffset + (endPtr - startPtr));
+        endPtr += read;
 
-        return ch;
+        return true;
     }
 
     public int consume() {
-        if (size == 0)
+        if (size() == 0)
             throw new IllegalStateException("Consuming from empty buffer");
 
-        int ch = buffer[startPtr];
-        startPtr = moduloAdd(startPtr, 1, buffer.length);
-        size--;
-        
-        return ch;
+        startOffset++;
+        return buffer[startPtr++];
     }
 
     public String consume(int num) {
-        if (num > size)
+        if (num > size())
             throw new IllegalArgumentException("Not enough items in buffer");
-        
-        StringBuilder temp = new StringBuilder();
-        for (int i = 0; i < num; i++) {
-            temp.append((char) consume());
-        }
 
-        return temp.toString();
+        String temp = new String(buffer, startPtr, num);
+        skip(num);
+
+        return temp;
+    }
+
+    /**
+     * Consume {@code num} chars, looking them up in {@code symbols} where
+     * they are, so no {@code String} is built unless they are new.
+     *
+     * @return The symbol id of the chars.
+     */
+    public int intern(int num, SymbolTable symbols) {
+        if (num > size())
+            throw new IllegalArgumentException("Not enough items in buffer");
+
+        int symbol = symbols.intern(buffer, startPtr, num);
+        skip(num);
+
+        return symbol;
+    }
+
+    /**
+     * Consume {@code num} chars without building a {@code String} out of them.
+     */
+    public void skip(int num) {
+        if (num > size())
+            throw new IllegalArgumentException("Not enough items in buffer");
+
+        startPtr += num;
+        startOffset += num;
+    }
+
+    /**
+     * @return The offset in the input of the first char not yet consumed.
+     */
+    public long getOffset() {
+        return startOffset;
+    }
+
+    /**
+     * @return The last char consumed, or -1 if none was.
+     */
+    public int getPrevious() {
+        return (startPtr > 0) ? buffer[startPtr - 1] : previous;
     }
 
     public int size() {
-        return size;
+        return currEndPtr - startPtr;
     }
 
     public void reset() {
         currEndPtr = startPtr;
-        size = 0;
-    }
-
-    private static int moduloAdd(int a, int b, int mod) {
-        return ((a % mod) + (b % mod)) % mod;
     }
 }
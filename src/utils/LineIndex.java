@@ -0,0 +1,153 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Offsets at which the lines of an input start. Filled while the input is read,
+ * and used to find the row and column of an offset only when someone asks for it.
+ *
+ * <p>
+ * A line ends at {@code "\n"}, {@code "\r\n"} or a lone {@code "\r"}, whatever
+ * the input uses. Rows and columns start at 1.
+ *
+ * <p>
+ * When the rows of the tokens are looked up as they are found, the lines
+ * before the last token are dropped with {@link #discardBefore(long)}, so the
+ * index only holds the lines read ahead of it, however long the input is.
+ */
+public class LineIndex {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // the starts of the lines kept, from first to end, the earlier ones are dropped
+    private long[] lineStarts;
+    private int first, end;
+    // the row of the first line kept, and the lines counted, the dropped ones too
+    private long firstRow, lines;
+    private boolean lastWasCR;
+    // only the start of the last line is kept
+    private boolean countOnly;
+
+    public LineIndex() {
+        this(1, 0);
+    }
+
+    /**
+     * @return An index which only counts the lines, in constant memory however
+     * many there are. Rows and columns cannot be looked up in it.
+     */
+    public static LineIndex countingLines() {
+        LineIndex index = new LineIndex(1, 0);
+        index.countOnly = true;
+        return index;
+    }
+
+    /**
+     * An index of an input read from the middle of line {@code firstRow},
+     * which starts at offset {@code firstLineStart}.
+     */
+    public LineIndex(long firstRow, long firstLineStart) {
+        lineStarts = new long[DEFAULT_CAPACITY];
+        lineStarts[0] = firstLineStart;
+        end = 1;
+        lines = 1;
+        this.firstRow = firstRow;
+    }
+
+    /**
+     * Record the line breaks in a block of the input.
+     *
+     * @param block the chars read.
+     * @param from index of the first char read in {@code block}.
+     * @param to index after the last char read in {@code block}.
+     * @param offset the offset of {@code block[from]} in the input.
+     */
+    public void scan(char[] block, int from, int to, long offset) {
+        for (int idx = from; idx < to; idx++) {
+            char ch = block[idx];
+
+            if (ch == '\n') {
+                // the line after a "\r\n" starts after the '\n', not after the '\r'
+                if (lastWasCR)
+                    lineStarts[countOnly ? 0 : end - 1] = offset + (idx - from) + 1;
+                else
+                    add(offset + (idx - from) + 1);
+            }
+            else if (ch == '\r') {
+                add(offset + (idx - from) + 1);
+            }
+            lastWasCR = ch == '\r';
+        }
+    }
+
+    private void add(long lineStart) {
+        lines++;
+        if (countOnly) {
+            lineStarts[0] = lineStart;
+            return;
+        }
+
+        if (end == lineStarts.length) {
+            // the lines dropped make room, else the array grows
+            if (first >= lineStarts.length / 2) {
+                System.arraycopy(lineStarts, first, lineStarts, 0, end - first);
+                end -= first;
+                first = 0;
+            }
+            else {
+                int capacity = (int) Math.min(2L * lineStarts.length, Integer.MAX_VALUE - 8);
+                if (capacity == lineStarts.length)
+                    throw new IllegalStateException("Too many lines to index");
+                lineStarts = Arrays.copyOf(lineStarts, capacity);
+            }
+        }
+        lineStarts[end++] = lineStart;
+    }
+
+    /**
+     * Drop the lines before the one holding {@code offset}, whose rows and
+     * columns are never looked up again. The offsets must not go back.
+     */
+    public void discardBefore(long offset) {
+        if (countOnly)
+            return;
+
+        // offsets only move forward, each line is passed over once
+        while (first < end - 1 && lineStarts[first + 1] <= offset) {
+            first++;
+            firstRow++;
+        }
+    }
+
+    /**
+     * @return The lines of the input read so far, one more than its line breaks.
+     */
+    public long getNumberOfLines() {
+        return lines;
+    }
+
+    public long getRow(long offset) {
+        return lineOf(offset) - first + firstRow;
+    }
+
+    public int getCol(long offset) {
+        return (int) (offset - lineStarts[lineOf(offset)]) + 1;
+    }
+
+    // index of the last line kept starting at or before offset
+    private int lineOf(long offset) {
+        if (countOnly)
+            throw new IllegalStateException("Lines are only counted");
+
+        int lo = first, hi = end - 1;
+
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        return lo;
+    }
+}
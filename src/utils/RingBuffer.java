@@ -0,0 +1,95 @@
+package utils;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue between exactly one producer thread and one consumer thread.
+ *
+ * <p>
+ * A full buffer blocks the producer and an empty one blocks the consumer, so
+ * the slower side sets the pace. Waiting threads spin briefly, then yield, then
+ * park for short periods. The producer calls {@link #close()} after its last
+ * item, and either side may {@link #cancel()} to make the other one give up.
+ */
+public class RingBuffer<T> {
+    private static final int SPINS = 100, YIELDS = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    private final Object[] slots;
+    private final int mask;
+
+    // head is only written by the consumer, tail only by the producer
+    private volatile long head, tail;
+    private volatile boolean closed, cancelled;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of 2.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    public void put(T item) {
+        if (item == null)
+            throw new IllegalArgumentException("Null items are not allowed");
+        if (closed)
+            throw new IllegalStateException("Putting into a closed ring buffer");
+
+        long t = tail;
+        for (int waits = 0; t - head == slots.length; waits++)
+            await(waits);
+
+        slots[(int) (t & mask)] = item;
+        tail = t + 1;
+    }
+
+    /**
+     * @return The next item, or {@code null} once the buffer is closed and empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T take() {
+        long h = head;
+        for (int waits = 0; h == tail; waits++) {
+            // tail is written before closed, so it is final here
+            if (closed && h == tail)
+                return null;
+            await(waits);
+        }
+
+        int idx = (int) (h & mask);
+        T item = (T) slots[idx];
+        slots[idx] = null;
+        head = h + 1;
+
+        return item;
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void await(int waits) {
+        if (cancelled)
+            throw new CancellationException("Ring buffer cancelled");
+
+        if (waits < SPINS)
+            return;
+        else if (waits < SPINS + YIELDS)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(PARK_NANOS);
+    }
+}
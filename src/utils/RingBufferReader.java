@@ -0,0 +1,39 @@
+package utils;
+
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * The consumer side of a {@link RingBuffer} of char blocks, as a {@code Reader}.
+ */
+public class RingBufferReader extends Reader {
+    private final RingBuffer<CharBuffer> blocks;
+    private CharBuffer current;
+    private boolean ended;
+
+    public RingBufferReader(RingBuffer<CharBuffer> blocks) {
+        this.blocks = blocks;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0)
+            return 0;
+
+        while (current == null || !current.hasRemaining()) {
+            if (ended || (current = blocks.take()) == null) {
+                ended = true;
+                return -1;
+            }
+        }
+
+        int read = Math.min(len, current.remaining());
+        current.get(cbuf, off, read);
+        return read;
+    }
+
+    @Override
+    public void close() {
+        blocks.cancel();
+    }
+}
@@ -0,0 +1,80 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the chars of an ASCII or ISO-8859-1 stream, where every byte is a
+ * char: the bytes are read in bulk and widened straight into the caller's
+ * array, without a {@code CharsetDecoder}. Bytes which are not ASCII are
+ * replaced by {@link #REPLACEMENT} in ASCII, as a decoder would.
+ */
+public class SingleByteReader extends Reader {
+    public static final char REPLACEMENT = '\uFFFD';
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final boolean ascii;
+    private byte[] bytes;
+
+    public SingleByteReader(InputStream in, Charset charset) {
+        if (!isSingleByte(charset))
+            throw new IllegalArgumentException("Not a single byte charset: " + charset);
+
+        this.in = in;
+        this.ascii = charset.equals(StandardCharsets.US_ASCII);
+        this.bytes = new byte[0];
+    }
+
+    /**
+     * @return Whether the chars of {@code charset} can be read by widening bytes.
+     */
+    public static boolean isSingleByte(Charset charset) {
+        return charset.equals(StandardCharsets.US_ASCII) || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Widen {@code bytes[from, from + length)} into {@code chars}, starting at {@code offset}.
+     */
+    public static void widen(byte[] bytes, int from, int length, char[] chars, int offset, boolean ascii) {
+        if (ascii) {
+            for (int idx = 0; idx < length; idx++) {
+                byte b = bytes[from + idx];
+                chars[offset + idx] = (b >= 0) ? (char) b : REPLACEMENT;
+            }
+        }
+        else {
+            for (int idx = 0; idx < length; idx++)
+                chars[offset + idx] = (char) (bytes[from + idx] & 0xff);
+        }
+    }
+
+    public boolean isAscii() {
+        return ascii;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        int wanted = Math.min(len, BLOCK_SIZE);
+        if (bytes.length < wanted)
+            bytes = new byte[wanted];
+
+        int read = in.read(bytes, 0, wanted);
+        if (read <= 0)
+            return -1;
+
+        widen(bytes, 0, read, cbuf, off, ascii);
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,136 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Interns lexemes, giving each distinct one a symbol id, counted from 0 in
+ * the order they are first seen. A lexeme is looked up straight from the
+ * chars it is scanned from, in an open addressing hash with linear probing,
+ * and its {@code String} is only built the first time it is seen.
+ *
+ * <p>
+ * Not thread safe, a table is filled by one lexer at a time.
+ */
+public class SymbolTable {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // symbol id + 1 of each slot, 0 for an empty slot
+    private int[] slots;
+    private int mask;
+    // the lexeme and its hash, by symbol id
+    private String[] symbols;
+    private int[] hashes;
+    private int size;
+
+    public SymbolTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of symbols the table holds before it grows.
+     */
+    public SymbolTable(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        // at most half of the slots are used
+        int slotCount = Integer.highestOneBit(capacity) << 2;
+        slots = new int[slotCount];
+        mask = slotCount - 1;
+        symbols = new String[capacity];
+        hashes = new int[capacity];
+        size = 0;
+    }
+
+    /**
+     * @return The symbol id of {@code chars[from, from + length)}, which is
+     * added if it was not seen before.
+     */
+    public int intern(char[] chars, int from, int length) {
+        int hash = hash(chars, from, length);
+        int slot = findSlot(hash, chars, from, length);
+        if (slots[slot] != 0)
+            return slots[slot] - 1;
+
+        if (size == symbols.length) {
+            grow();
+            slot = findSlot(hash, chars, from, length);
+        }
+
+        int symbol = size++;
+        symbols[symbol] = new String(chars, from, length);
+        hashes[symbol] = hash;
+        slots[slot] = symbol + 1;
+        return symbol;
+    }
+
+    public int intern(String lexeme) {
+        return intern(lexeme.toCharArray(), 0, lexeme.length());
+    }
+
+    /**
+     * @return The symbol id of {@code chars[from, from + length)}, or -1 if it was never interned.
+     */
+    public int find(char[] chars, int from, int length) {
+        int slot = findSlot(hash(chars, from, length), chars, from, length);
+        return slots[slot] - 1;
+    }
+
+    public String getSymbol(int symbol) {
+        if (symbol < 0 || symbol >= size)
+            throw new IndexOutOfBoundsException("No symbol " + symbol);
+
+        return symbols[symbol];
+    }
+
+    /**
+     * @return The number of distinct symbols.
+     */
+    public int size() {
+        return size;
+    }
+
+    // the slot holding the lexeme, or the empty slot where it belongs
+    private int findSlot(int hash, char[] chars, int from, int length) {
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            int symbol = slots[slot] - 1;
+            if (hashes[symbol] == hash && matches(symbols[symbol], chars, from, length))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static boolean matches(String symbol, char[] chars, int from, int length) {
+        if (symbol.length() != length)
+            return false;
+        for (int idx = 0; idx < length; idx++) {
+            if (symbol.charAt(idx) != chars[from + idx])
+                return false;
+        }
+        return true;
+    }
+
+    private static int hash(char[] chars, int from, int length) {
+        int hash = 0;
+        for (int idx = from; idx < from + length; idx++)
+            hash = 31 * hash + chars[idx];
+        // spread the high bits, the low ones pick the slot
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        symbols = Arrays.copyOf(symbols, symbols.length * 2);
+        hashes = Arrays.copyOf(hashes, hashes.length * 2);
+
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int symbol = 0; symbol < size; symbol++) {
+            int slot = hashes[symbol] & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = symbol + 1;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned numbers in 7 bits per byte, the low bits first, the high bit of
+ * each byte set if more bytes follow. Small numbers, like the gaps between
+ * sorted offsets, take a single byte. Strings are written as their length
+ * followed by each char as a number, so ASCII takes a byte per char and any
+ * char, a lone surrogate included, reads back the same.
+ */
+public final class Varint {
+    private Varint() {
+    }
+
+    /**
+     * @param value a number which must not be negative.
+     */
+    public static void write(DataOutput out, long value) throws IOException {
+        if (value < 0)
+            throw new IllegalArgumentException("Negative varint: " + value);
+
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Read a number at the position of {@code in}, which is moved after it.
+     */
+    public static long read(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+            if (shift > 56)
+                throw new IllegalArgumentException("Varint is too long");
+        }
+    }
+
+    public static void writeString(DataOutput out, String str) throws IOException {
+        write(out, str.length());
+        for (int idx = 0; idx < str.length(); idx++)
+            write(out, str.charAt(idx));
+    }
+
+    public static String readString(ByteBuffer in) {
+        int length = (int) read(in);
+        char[] chars = new char[length];
+        for (int idx = 0; idx < length; idx++)
+            chars[idx] = (char) read(in);
+        return new String(chars);
+    }
+}